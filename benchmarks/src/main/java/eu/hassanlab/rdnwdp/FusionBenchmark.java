@@ -0,0 +1,70 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import net.imagej.Dataset;
+import org.openjdk.jmh.annotations.*;
+import org.scijava.Context;
+import org.scijava.convert.ConvertService;
+import sc.fiji.hdf5.HDF5ImageJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FusionBenchmark {
+
+    @Param({"512", "1024"})
+    public int size;
+
+    @Param({"40"})
+    public int depth;
+
+    @Param({"2"})
+    public int scale;
+
+    private Context context;
+    private ConvertService convertService;
+    private PreProcessing.ImageFusion fusion;
+    private double[] offsets;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        context = new Context();
+        convertService = context.service(ConvertService.class);
+
+        file = File.createTempFile("fusion", ".h5");
+        file.delete();
+        ImagePlus dapi = SyntheticData.blobs(size, size, depth, size, 6, 42);
+        HDF5ImageJ.hdf5write(dapi, file.getPath(), "/raw/dapi", false);
+        HDF5ImageJ.hdf5write(SyntheticData.downscale(SyntheticData.blobs(size, size, depth, size, 6, 43), scale),
+                file.getPath(), "/raw/venus", false);
+        HDF5ImageJ.hdf5write(SyntheticData.downscale(SyntheticData.blobs(size, size, depth, size, 6, 44), scale),
+                file.getPath(), "/raw/mcherry", false);
+
+        PreProcessing preProcessing = new PreProcessing();
+        context.inject(preProcessing);
+        PreProcessing.FileNameSet names = preProcessing.new HDF5FileNameSet(file,
+                new String[] {"/raw/dapi", "/raw/venus", "/raw/mcherry"});
+        fusion = preProcessing.new ImageFusion(preProcessing.new SourceImageSet(names));
+        offsets = new double[] {0.0, 1.0, -1.0};
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.dispose();
+        file.delete();
+    }
+
+    @Benchmark
+    public ImagePlus alignedImage() {
+        Dataset aligned = fusion.getAlignedImage(offsets);
+        return ImageBridge.toImagePlus(aligned, convertService);
+    }
+}
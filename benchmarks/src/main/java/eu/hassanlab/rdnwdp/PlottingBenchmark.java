@@ -0,0 +1,59 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.*;
+import org.scijava.Context;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PlottingBenchmark {
+
+    @Param({"512"})
+    public int size;
+
+    @Param({"40"})
+    public int depth;
+
+    @Param({"5000", "15000"})
+    public int nuclei;
+
+    @Param({"3"})
+    public int channels;
+
+    private Context context;
+    private Plotting plotting;
+    private ResultsTable table;
+    private ImagePlus reference;
+
+    @Setup
+    public void setup() {
+        context = new Context();
+        plotting = new Plotting();
+        context.inject(plotting);
+        table = SyntheticData.nuclei(size, size, depth, nuclei, channels, 6, 42);
+        ImageStack stack = new ImageStack(size, size);
+        for (int z = 0; z < depth; z++) {
+            stack.addSlice(new ShortProcessor(size, size));
+        }
+        reference = new ImagePlus("reference", stack);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.dispose();
+    }
+
+    @Benchmark
+    public ImagePlus plotNuclei() {
+        return plotting.plot(table, reference);
+    }
+}
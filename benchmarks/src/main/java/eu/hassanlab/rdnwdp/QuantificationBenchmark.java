@@ -0,0 +1,63 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import org.openjdk.jmh.annotations.*;
+import org.scijava.Context;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QuantificationBenchmark {
+
+    @Param({"512"})
+    public int size;
+
+    @Param({"40"})
+    public int depth;
+
+    @Param({"1000", "5000"})
+    public int nuclei;
+
+    @Param({"3"})
+    public int channels;
+
+    private Context context;
+    private Quantification quantification;
+    private ImagePlus labels;
+    private Map<String, ImagePlus> images;
+
+    @Setup
+    public void setup() {
+        context = new Context();
+        quantification = new Quantification();
+        context.inject(quantification);
+        labels = SyntheticData.labels(size, size, depth, nuclei, 6, 42);
+        images = new LinkedHashMap<>();
+        for (int c = 0; c < channels; c++) {
+            images.put("channel" + c, SyntheticData.blobs(size, size, depth, nuclei, 6, 42 + c));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.dispose();
+    }
+
+    @Benchmark
+    public LabelAccumulators measure() {
+        return LabelAccumulators.measure(labels);
+    }
+
+    @Benchmark
+    public ResultsTable quantify() {
+        return quantification.quantify(images, labels).table();
+    }
+}
@@ -0,0 +1,54 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import net.imagej.Dataset;
+import org.openjdk.jmh.annotations.*;
+import org.scijava.Context;
+import org.scijava.convert.ConvertService;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ShiftCalculatorBenchmark {
+
+    @Param({"512"})
+    public int size;
+
+    @Param({"10"})
+    public int depth;
+
+    @Param({"37"})
+    public int shift;
+
+    private Context context;
+    private ShiftCalculator calculator;
+    private Dataset reference;
+    private Dataset input;
+
+    @Setup
+    public void setup() {
+        context = new Context();
+        ConvertService convertService = context.service(ConvertService.class);
+        calculator = new ShiftCalculator();
+        context.inject(calculator);
+        ImagePlus image = SyntheticData.blobs(size, size, depth, size, 8, 42);
+        ImagePlus crop = SyntheticData.crop(image, shift, shift, size / 2, size / 2);
+        reference = convertService.convert(image, Dataset.class);
+        input = convertService.convert(crop, Dataset.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.dispose();
+    }
+
+    @Benchmark
+    public ShiftCalculator.Alignment align() {
+        return calculator.align(reference, input);
+    }
+}
@@ -0,0 +1,136 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+final class SyntheticData {
+
+    private SyntheticData() {}
+
+    static ImagePlus labels(int width, int height, int depth, int count, int radius, long seed) {
+        short[][] planes = new short[depth][width * height];
+        Random random = new Random(seed);
+        for (int label = 1; label <= count; label++) {
+            int r = radius / 2 + random.nextInt(radius / 2 + 1);
+            sphere(planes, width, height, random.nextInt(width), random.nextInt(height), random.nextInt(depth), r,
+                    label, false);
+        }
+        return image("labels", width, height, planes);
+    }
+
+    static ImagePlus blobs(int width, int height, int depth, int count, int radius, long seed) {
+        short[][] planes = new short[depth][width * height];
+        Random random = new Random(seed);
+        for (short[] plane : planes) {
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = (short) (100 + random.nextInt(50));
+            }
+        }
+        for (int n = 0; n < count; n++) {
+            int r = radius / 2 + random.nextInt(radius / 2 + 1);
+            sphere(planes, width, height, random.nextInt(width), random.nextInt(height), random.nextInt(depth), r,
+                    500 + random.nextInt(3000), true);
+        }
+        return image("blobs", width, height, planes);
+    }
+
+    static ImagePlus channels(int width, int height, int depth, int channels, int count, int radius, long seed) {
+        ImageStack stack = new ImageStack(width, height);
+        ImagePlus[] images = new ImagePlus[channels];
+        for (int c = 0; c < channels; c++) {
+            images[c] = blobs(width, height, depth, count, radius, seed + c);
+        }
+        for (int z = 1; z <= depth; z++) {
+            for (int c = 0; c < channels; c++) {
+                stack.addSlice(images[c].getStack().getProcessor(z));
+            }
+        }
+        ImagePlus result = new ImagePlus("channels", stack);
+        result.setDimensions(channels, depth, 1);
+        result.setOpenAsHyperStack(true);
+        return result;
+    }
+
+    static ImagePlus crop(ImagePlus image, int x, int y, int width, int height) {
+        ImageStack stack = image.getStack().crop(x, y, 0, width, height, image.getStackSize());
+        ImagePlus result = new ImagePlus("crop", stack);
+        result.copyScale(image);
+        return result;
+    }
+
+    static ImagePlus downscale(ImagePlus image, int factor) {
+        int width = image.getWidth() / factor;
+        int height = image.getHeight() / factor;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 1; z <= image.getStackSize(); z++) {
+            short[] src = (short[]) image.getStack().getPixels(z);
+            short[] dst = new short[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    dst[y * width + x] = src[y * factor * image.getWidth() + x * factor];
+                }
+            }
+            stack.addSlice(new ShortProcessor(width, height, dst, null));
+        }
+        ImagePlus result = new ImagePlus("downscaled", stack);
+        Calibration calibration = image.getCalibration().copy();
+        calibration.pixelWidth *= factor;
+        calibration.pixelHeight *= factor;
+        result.setCalibration(calibration);
+        return result;
+    }
+
+    static ResultsTable nuclei(int width, int height, int depth, int count, int channels, int radius, long seed) {
+        Random random = new Random(seed);
+        ResultsTable table = new ResultsTable();
+        for (int n = 0; n < count; n++) {
+            double r = radius / 2.0 + random.nextDouble() * radius / 2.0;
+            table.incrementCounter();
+            table.addValue("Particle", n + 1);
+            table.addValue("cx", random.nextDouble() * width);
+            table.addValue("cy", random.nextDouble() * height);
+            table.addValue("cz", random.nextDouble() * depth);
+            table.addValue("Volume", 4.0 / 3.0 * Math.PI * r * r * r);
+            for (int c = 0; c < channels; c++) {
+                double mean = 100 + random.nextDouble() * 3000;
+                table.addValue("Integral " + c, mean * 4.0 / 3.0 * Math.PI * r * r * r);
+                table.addValue("Mean " + c, mean);
+            }
+        }
+        return table;
+    }
+
+    private static void sphere(short[][] planes, int width, int height, int cx, int cy, int cz, int r, int value,
+                               boolean falloff) {
+        for (int z = Math.max(0, cz - r); z <= Math.min(planes.length - 1, cz + r); z++) {
+            for (int y = Math.max(0, cy - r); y <= Math.min(height - 1, cy + r); y++) {
+                for (int x = Math.max(0, cx - r); x <= Math.min(width - 1, cx + r); x++) {
+                    int d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy) + (z - cz) * (z - cz);
+                    if (d2 <= r * r) {
+                        int v = falloff ? (int) (value * (1.0 - (double) d2 / (r * r))) : value;
+                        planes[z][y * width + x] = (short) Math.max(planes[z][y * width + x] & 0xffff, v);
+                    }
+                }
+            }
+        }
+    }
+
+    private static ImagePlus image(String title, int width, int height, short[][] planes) {
+        ImageStack stack = new ImageStack(width, height);
+        for (short[] plane : planes) {
+            stack.addSlice(new ShortProcessor(width, height, plane, null));
+        }
+        ImagePlus image = new ImagePlus(title, stack);
+        Calibration calibration = image.getCalibration();
+        calibration.pixelWidth = 0.2;
+        calibration.pixelHeight = 0.2;
+        calibration.pixelDepth = 0.5;
+        calibration.setUnit("micron");
+        return image;
+    }
+}
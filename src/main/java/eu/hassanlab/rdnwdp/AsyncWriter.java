@@ -0,0 +1,309 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+class AsyncWriter {
+
+    interface Write {
+        void write(File temp) throws Exception;
+    }
+
+    interface DatasetWrite {
+        void write(HDF5Session session) throws Exception;
+
+        // Called instead of write when the batch failed before reaching it
+        default void discard() {
+        }
+    }
+
+    interface DatasetRead<T> {
+        T read(HDF5Session session) throws Exception;
+    }
+
+    // Images waiting to be written are limited, so the producers wait for the writes instead of running out of memory
+    static final int BUFFER_MB = Math.max(1, Integer.getInteger("rdnwdp.writeBuffer",
+            (int) (Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024))));
+
+    private static final Semaphore buffer = new Semaphore(BUFFER_MB, true);
+
+    private LogService logService;
+    private ExecutorService pool;
+    private Map<File, Batch> pending;
+    private Map<File, CompletableFuture<Void>> tails;
+    private Map<File, Staged> staged;
+    private List<CompletableFuture<Void>> all;
+
+    AsyncWriter(LogService logService) {
+        this.logService = logService;
+        pool = IOPool.shared();
+        pending = new HashMap<>();
+        tails = new HashMap<>();
+        staged = new HashMap<>();
+        all = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    CompletableFuture<Void> hdf5(File file, ImagePlus image, String dataset) {
+        return hdf5(file, image, dataset, 0);
+    }
+
+    CompletableFuture<Void> hdf5(File file, ImagePlus image, String dataset, int compressionLevel) {
+        return hdf5(file, RunReport.bytes(image), new DatasetWrite() {
+            @Override
+            public void write(HDF5Session session) {
+                try {
+                    session.write(image, dataset, compressionLevel);
+                } finally {
+                    image.close();
+                }
+            }
+
+            @Override
+            public void discard() {
+                image.close();
+            }
+        });
+    }
+
+    CompletableFuture<Void> hdf5(File file, DatasetWrite write) {
+        return enqueue(file, true, write);
+    }
+
+    // Waits while the data queued for writing would exceed the buffer, a larger write only waits for an empty buffer
+    CompletableFuture<Void> hdf5(File file, long bytes, DatasetWrite write) {
+        int permits = (int) Math.min(BUFFER_MB, (bytes + (1 << 20) - 1) >> 20);
+        buffer.acquireUninterruptibly(permits);
+        CompletableFuture<Void> done = enqueue(file, true, write);
+        done.whenComplete((v, e) -> buffer.release(permits));
+        return done;
+    }
+
+    CompletableFuture<Void> file(File file, Write write) {
+        return enqueue(file, false, write);
+    }
+
+    // Until the file is committed, all the HDF5 writes to it go to one temporary copy, so the existing file is copied
+    // once instead of once per batch
+    synchronized void begin(File file) {
+        File target = file.getAbsoluteFile();
+        if (! staged.containsKey(target)) {
+            staged.put(target, new Staged(temp(target.toPath())));
+        }
+    }
+
+    // The temporary copy replaces the file after all the writes queued so far, unless one of them failed
+    synchronized CompletableFuture<Void> commit(File file) {
+        File target = file.getAbsoluteFile();
+        Staged stage = staged.remove(target);
+        if (stage == null) {
+            return flush(file);
+        }
+        return chain(target, true, () -> {
+            if (stage.failed) {
+                throw new CompletionException(new IOException("Not replacing " + target + ", a write failed"));
+            }
+            if (stage.created) {
+                move(stage.temp, target.toPath());
+            }
+            return null;
+        });
+    }
+
+    // Reads see the datasets written before, from the temporary copy while the file is not committed
+    synchronized <T> CompletableFuture<T> read(File file, DatasetRead<T> read) {
+        File target = file.getAbsoluteFile();
+        Staged stage = staged.get(target);
+        return chain(target, false, () -> {
+            boolean temp = (stage != null) && stage.created && (! stage.failed);
+            try (HDF5Session session = HDF5Session.read(temp ? stage.temp.toFile() : target)) {
+                return read.read(session);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // Runs after everything queued for the file, later writes start a new batch
+    private <T> CompletableFuture<T> chain(File target, boolean output, Callable<T> task) {
+        pending.remove(target);
+        CompletableFuture<Void> previous = tails.getOrDefault(target, CompletableFuture.completedFuture(null));
+        CompletableFuture<T> future = previous.handle((v, e) -> null).thenApplyAsync(v -> {
+            try {
+                return task.call();
+            } catch (CompletionException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+        // Failed reads are only reported to the caller
+        track(target, output ? future.thenApply(v -> null) : future.handle((v, e) -> null));
+        return future;
+    }
+
+    private void track(File target, CompletableFuture<Void> done) {
+        done.whenComplete((v, e) -> {
+            if (e != null) {
+                logService.log(LogLevel.ERROR, "Writing " + target + " failed!", e);
+            }
+            synchronized (this) {
+                tails.remove(target, done);
+            }
+        });
+        tails.put(target, done);
+        all.add(done);
+    }
+
+    // Writes to a file which are still waiting are coalesced into a single commit of the file
+    private synchronized CompletableFuture<Void> enqueue(File file, boolean append, Object write) {
+        File target = file.getAbsoluteFile();
+        Batch batch = pending.get(target);
+        if ((batch == null) || (batch.append != append)) {
+            Batch created = new Batch(target, append, append ? staged.get(target) : null);
+            CompletableFuture<Void> previous = tails.getOrDefault(target, CompletableFuture.completedFuture(null));
+            created.done = previous.handle((v, e) -> null).thenRunAsync(() -> commit(created), pool);
+            track(target, created.done);
+            pending.put(target, created);
+            batch = created;
+        }
+        batch.writes.add(write);
+        return batch.done;
+    }
+
+    private void commit(Batch batch) {
+        List<Object> writes;
+        synchronized (this) {
+            pending.remove(batch.target, batch);
+            writes = new ArrayList<>(batch.writes);
+        }
+
+        // Output is written to a hidden file next to the target and renamed, so the target is never half-written
+        Path target = batch.target.toPath();
+        Staged stage = batch.staged;
+        Path temp = stage != null ? stage.temp : temp(target);
+        int done = 0;
+        try {
+            if (batch.append && (stage != null) && stage.failed) {
+                throw new IOException("An earlier write to " + target + " failed");
+            }
+            if (batch.append && ((stage == null) || (! stage.created)) && Files.exists(target)) {
+                Files.copy(target, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (stage != null) {
+                stage.created = true;
+            }
+            if (batch.append) {
+                // All the datasets of a batch are written while the file is opened once
+                try (HDF5Session session = HDF5Session.write(temp.toFile())) {
+                    for (Object write : writes) {
+                        done++;
+                        ((DatasetWrite) write).write(session);
+                    }
+                }
+            } else {
+                for (Object write : writes) {
+                    ((Write) write).write(temp.toFile());
+                }
+            }
+            if (stage == null) {
+                move(temp, target);
+            }
+        } catch (Exception e) {
+            if (batch.append) {
+                for (Object write : writes.subList(done, writes.size())) {
+                    ((DatasetWrite) write).discard();
+                }
+            }
+            if (stage != null) {
+                stage.failed = true;
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                logService.log(LogLevel.WARN, "Failed to remove temporary file " + temp);
+            }
+            throw new CompletionException(e);
+        }
+    }
+
+    private static Path temp(Path target) {
+        return target.resolveSibling("." + UUID.randomUUID().toString().substring(0, 8) + "." + target.getFileName());
+    }
+
+    private static void move(Path temp, Path target) {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    synchronized CompletableFuture<Void> flush(File... files) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (File file : files) {
+            CompletableFuture<Void> tail = tails.get(file.getAbsoluteFile());
+            if (tail != null) {
+                futures.add(tail);
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    void close() {
+        List<File> uncommitted;
+        synchronized (this) {
+            uncommitted = new ArrayList<>(staged.keySet());
+        }
+        uncommitted.forEach(this::commit);
+        List<CompletableFuture<Void>> futures;
+        synchronized (all) {
+            futures = new ArrayList<>(all);
+        }
+        int failed = 0;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            logService.log(LogLevel.WARN, failed + " output files could not be written!");
+        }
+    }
+
+    private static class Batch {
+        private File target;
+        private boolean append;
+        private List<Object> writes;
+        private Staged staged;
+        private CompletableFuture<Void> done;
+
+        Batch(File target, boolean append, Staged staged) {
+            this.target = target;
+            this.append = append;
+            this.staged = staged;
+            writes = new ArrayList<>();
+        }
+    }
+
+    private static class Staged {
+        private Path temp;
+        private volatile boolean created;
+        private volatile boolean failed;
+
+        Staged(Path temp) {
+            this.temp = temp;
+        }
+    }
+}
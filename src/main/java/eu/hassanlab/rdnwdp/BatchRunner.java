@@ -0,0 +1,201 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.scif.services.DatasetIOService;
+import io.scif.services.FormatService;
+import net.imagej.DatasetService;
+import net.imagej.ops.OpService;
+import org.scijava.Context;
+import org.scijava.command.CommandInfo;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.convert.ConvertService;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.module.ModuleItem;
+import org.scijava.service.Service;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+
+public class BatchRunner {
+
+    @SuppressWarnings("unchecked")
+    private static final Class<? extends Service>[] SERVICES = new Class[] {
+            CommandService.class, ConvertService.class, LogService.class, OpService.class,
+            DatasetService.class, DatasetIOService.class, FormatService.class
+    };
+
+    private Context context;
+    private CommandService commandService;
+    private ConvertService convertService;
+    private LogService logService;
+
+    private BatchRunner(Context context) {
+        this.context = context;
+        commandService = context.getService(CommandService.class);
+        convertService = context.getService(ConvertService.class);
+        logService = context.getService(LogService.class);
+    }
+
+    private int run(List<Map<String, Object>> jobs) {
+        int failed = 0;
+        for (Map<String, Object> job : jobs) {
+            long start = System.nanoTime();
+            try {
+                run(job);
+                logService.log(LogLevel.INFO, String.format("Job %s finished in %.1f s", job,
+                        (System.nanoTime() - start) / 1e9));
+            } catch (Exception e) {
+                logService.log(LogLevel.ERROR, "Job " + job + " failed!", e);
+                failed++;
+            }
+        }
+        logService.log(LogLevel.INFO, (jobs.size() - failed) + " of " + jobs.size() + " jobs done");
+        return failed;
+    }
+
+    private void run(Map<String, Object> job) throws Exception {
+        Map<String, Object> parameters = new LinkedHashMap<>(job);
+        Object name = parameters.remove("command");
+        if (name == null) {
+            throw new IllegalArgumentException("No command given");
+        }
+        String className = name.toString().contains(".") ? name.toString() :
+                BatchRunner.class.getPackage().getName() + "." + name;
+        CommandInfo info = commandService.getCommand(className);
+        if (info == null) {
+            throw new IllegalArgumentException("Unknown command " + name);
+        }
+
+        CommandModule module = (CommandModule) info.createModule();
+        context.inject(module.getCommand());
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            ModuleItem<?> item = info.getInput(parameter.getKey());
+            if (item == null) {
+                throw new IllegalArgumentException("Unknown parameter " + parameter.getKey() + " of " + name);
+            }
+            Object value = parameter.getValue() == null ? null :
+                    convertService.convert(parameter.getValue(), item.getType());
+            if ((value == null) && (parameter.getValue() != null)) {
+                throw new IllegalArgumentException("Invalid value " + parameter.getValue() + " of " +
+                        parameter.getKey());
+            }
+            module.setInput(parameter.getKey(), value);
+        }
+
+        logService.log(LogLevel.INFO, "Running " + name + " " + parameters);
+        module.run();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> readJobs(File file) throws IOException {
+        Object content;
+        try (Reader reader = new FileReader(file)) {
+            // Job files only hold plain maps and lists, tagged objects are rejected
+            content = new Yaml(new SafeConstructor()).load(reader);
+        }
+
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        Map<String, Object> defaults = new LinkedHashMap<>();
+        List<Object> entries;
+        if (content instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) content;
+            if (map.get("defaults") instanceof Map) {
+                defaults.putAll((Map<String, Object>) map.get("defaults"));
+            }
+            entries = map.get("jobs") instanceof List ? (List<Object>) map.get("jobs") : Collections.emptyList();
+        } else if (content instanceof List) {
+            entries = (List<Object>) content;
+        } else {
+            throw new IOException("No jobs found in " + file);
+        }
+
+        for (Object entry : entries) {
+            if (! (entry instanceof Map)) {
+                throw new IOException("Invalid job " + entry + " in " + file);
+            }
+            Map<String, Object> job = new LinkedHashMap<>(defaults);
+            job.putAll((Map<String, Object>) entry);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private static Map<String, Object> parseJob(List<String> args) {
+        Map<String, Object> job = new LinkedHashMap<>();
+        job.put("command", args.get(0));
+        for (String arg : args.subList(1, args.size())) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                throw new IllegalArgumentException("Invalid parameter " + arg + " (expected key=value)");
+            }
+            job.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        return job;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BatchRunner [--slice k/n] Command key=value [key=value ...]");
+        System.err.println("       BatchRunner [--slice k/n] jobs.yml");
+        System.exit(2);
+    }
+
+    public static void main(String... args) {
+        Logger root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+        System.setProperty("java.awt.headless", "true");
+
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int slice = 0;
+        int slices = 1;
+        if ((arguments.size() > 1) && arguments.get(0).equals("--slice")) {
+            String[] parts = arguments.get(1).split("/");
+            try {
+                slice = Integer.parseInt(parts[0]);
+                slices = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            } catch (NumberFormatException e) {
+                usage();
+            }
+            arguments = arguments.subList(2, arguments.size());
+        }
+        if (arguments.isEmpty() || (slices < 1) || (slice < 0) || (slice >= slices)) {
+            usage();
+        }
+
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        try {
+            if ((arguments.size() == 1) && arguments.get(0).matches(".*\\.ya?ml$")) {
+                jobs = readJobs(new File(arguments.get(0)));
+            } else {
+                jobs.add(parseJob(arguments));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+
+        List<Map<String, Object>> selected = new ArrayList<>();
+        for (int i = slice; i < jobs.size(); i += slices) {
+            selected.add(jobs.get(i));
+        }
+
+        Context context = new Context(SERVICES);
+        int failed;
+        try {
+            failed = new BatchRunner(context).run(selected);
+        } finally {
+            context.dispose();
+        }
+
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
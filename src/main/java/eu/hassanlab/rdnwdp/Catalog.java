@@ -0,0 +1,142 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import net.imagej.ImageJ;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+
+@Plugin(type = Command.class, menuPath = "Plugins>RDN-WDP>Catalog")
+public class Catalog implements Command {
+
+    static final String CATALOG_FILE = "catalog.yml";
+
+    @Parameter
+    private LogService logService;
+
+    @Parameter(label = "Input folder", style = "directory")
+    private File inputFolder;
+
+    @Parameter(label = "Catalog file (.yml)", required = false)
+    private File catalogFile;
+
+    @Parameter(label = "Thumbnail size")
+    private int thumbnailSize = 128;
+
+    @Parameter(label = "Number of I/O threads", required = false)
+    private Integer threads;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    private RunReport report = new RunReport("Catalog");
+
+    @Override
+    public void run() {
+        report = new RunReport("Catalog");
+        if (threads == null) {
+            threads = IOPool.THREADS;
+        }
+        if (catalogFile == null) {
+            catalogFile = new File(inputFolder, CATALOG_FILE);
+        }
+
+        // Files which did not change since the last scan keep their entries
+        DatasetIndex index = DatasetIndex.open(catalogFile, logService);
+        List<File> files = new SampleDiscovery(inputFolder, logService).extension(".h5").list();
+        index.retain(files);
+
+        // Scanning mostly waits for reads, so it runs on an I/O pool rather than one thread per core
+        ExecutorService pool = IOPool.create(threads, "Catalog");
+        ExecutorCompletionService<Object> ecs = new ExecutorCompletionService<>(pool);
+        int submitted = 0;
+        for (File file : files) {
+            if (! index.contains(file)) {
+                ecs.submit(new FileScanner(file, index));
+                submitted++;
+            }
+        }
+        logService.log(LogLevel.INFO, "Scanning " + submitted + " of " + files.size() + " files");
+        while (submitted > 0) {
+            try {
+                ecs.take().get();
+            } catch (Exception e) {
+                logService.log(LogLevel.WARN, "One of the scanning threads failed!", e);
+            }
+            submitted--;
+        }
+        pool.shutdown();
+
+        AsyncWriter writer = new AsyncWriter(logService);
+        writer.file(catalogFile, index::save).thenRun(() ->
+                logService.log(LogLevel.INFO, "Catalog of " + index.size() + " files saved to " + catalogFile));
+        writer.close();
+        report.save(reportFile, logService);
+    }
+
+    class FileScanner implements Callable<Object> {
+
+        private File file;
+        private DatasetIndex index;
+        private long queued;
+
+        FileScanner(File file, DatasetIndex index) {
+            this.file = file;
+            this.index = index;
+            queued = System.nanoTime();
+        }
+
+        @Override
+        public Object call() throws Exception {
+            report.measure(file.getName(), "scan", queued, stage -> {
+                // The file state is taken before scanning, so a file changed meanwhile is scanned again next time
+                long length = file.length();
+                long modified = file.lastModified();
+                List<DatasetIndex.Entry> entries = new ArrayList<>();
+                try (HDF5Session session = HDF5Session.read(file)) {
+                    for (String dataset : session.datasets()) {
+                        DatasetIndex.Entry entry = DatasetIndex.scan(session, dataset, thumbnailSize);
+                        stage.read(entry.bytes()).voxels(entry.voxels());
+                        entries.add(entry);
+                    }
+                }
+                index.put(file, length, modified, entries);
+            });
+            return this;
+        }
+    }
+
+    public static void main(String... args) {
+        Logger root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+
+        final ImageJ ij = new ImageJ();
+        ij.launch(args);
+
+        int received = 0;
+        boolean errors = false;
+
+        while(received < 1 && !errors) {
+            Future future = ij.command().run(Catalog.class, true);
+            try {
+                future.get();
+                received++;
+            }
+            catch(Exception e) {
+                errors = true;
+            }
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,448 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imagej.ImageJ;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.LoggerFactory;
+import sc.fiji.hdf5.HDF5ImageJ;
+import trainableSegmentation.FeatureStack3D;
+import trainableSegmentation.FeatureStackArray;
+import trainableSegmentation.WekaSegmentation;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+@Plugin(type = Command.class, menuPath = "Plugins>RDN-WDP>Classification")
+public class Classification implements Command {
+
+    private static final String[] SIGMA_FEATURES = {"Gaussian_blur", "Derivatives", "Difference_of_Gaussian",
+            "Laplacian", "Edges", "Minimum", "Maximum", "Mean", "Median", "Variance"};
+
+    @Parameter
+    private LogService logService;
+
+    @Parameter(label = "Classifier")
+    private File classifierFile;
+
+    @Parameter(label = "Input folder", style = "directory")
+    private File inputFolder;
+
+    @Parameter(label = "Dataset to classify")
+    private String dataset = "/aligned/channel0";
+
+    @Parameter(label = "Probability map dataset (output)")
+    private String pmapDataset = "/weka/pmap{c}";
+
+    @Parameter(label = "Tile width")
+    private int tileWidth = 512;
+
+    @Parameter(label = "Tile height")
+    private int tileHeight = 512;
+
+    @Parameter(label = "Tile halo")
+    private int halo = 32;
+
+    @Parameter(label = "Memory budget (MB)", required = false)
+    private Integer memoryBudget;
+
+    @Parameter(label = "Compression level (> 0 writes chunked datasets)")
+    private int compressionLevel = 1;
+
+    @Parameter(label = "Dataset catalog (.yml)", required = false)
+    private File catalogFile;
+
+    @Parameter(label = "Number of threads", required = false)
+    private Integer threads;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    private RunReport report = new RunReport("Classification");
+    private AsyncWriter writer;
+    private DatasetIndex catalog;
+    private WekaSegmentation weka;
+    private BlockingQueue<WekaSegmentation> classifiers;
+    private AtomicInteger created;
+    private int copies;
+    private FeatureParameters features;
+    private Semaphore budget;
+    private int budgetPermits;
+
+    @Override
+    public void run() {
+        report = new RunReport("Classification");
+        if (! loadClassifier()) {
+            return;
+        }
+
+        List<File> list = new SampleDiscovery(inputFolder, logService).extension(".h5").list();
+        catalog = DatasetIndex.open(catalogFile != null ? catalogFile : new File(inputFolder, Catalog.CATALOG_FILE),
+                logService);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        writer = new AsyncWriter(logService);
+        try {
+            for (File file : list) {
+                ImageClassifier classifier = new ImageClassifier(file, pool);
+                try {
+                    classifier.call();
+                } catch (Exception e) {
+                    logService.log(LogLevel.WARN, "Classification of " + file.getPath() + " failed!", e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+            writer.close();
+        }
+        report.save(reportFile, logService);
+    }
+
+    boolean loadClassifier() {
+        if (threads == null) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (memoryBudget == null) {
+            memoryBudget = (int) (Runtime.getRuntime().maxMemory() * 0.75 / (1024 * 1024));
+        }
+
+        logService.log(LogLevel.INFO, "Loading the classifier " + classifierFile);
+        weka = new WekaSegmentation(true);
+        if (! weka.loadClassifier(classifierFile.getPath())) {
+            logService.log(LogLevel.ERROR, "Error loading classifier " + classifierFile);
+            return false;
+        }
+        features = new FeatureParameters(weka.getTrainHeader());
+
+        // Tiles are classified concurrently, each by its own copy of the classifier; the copies are loaded when needed
+        // and taken out of the memory budget up front, at most a quarter of it
+        long model = Math.max(1, classifierFile.length() / (1024 * 1024));
+        copies = (int) Math.max(1, Math.min(threads, memoryBudget / 4 / model));
+        classifiers = new LinkedBlockingQueue<>();
+        classifiers.add(weka);
+        created = new AtomicInteger(1);
+        budgetPermits = (int) Math.max(1, memoryBudget - (copies - 1) * model);
+        budget = new Semaphore(budgetPermits, true);
+
+        return true;
+    }
+
+    ImagePlus classify(ImagePlus image, ExecutorService pool) throws Exception {
+        return new ImageClassifier(null, pool).classify(image);
+    }
+
+    private WekaSegmentation borrowClassifier() throws InterruptedException {
+        WekaSegmentation classifier = classifiers.poll();
+        if (classifier != null) {
+            return classifier;
+        }
+        if (created.getAndUpdate(n -> Math.min(n + 1, copies)) < copies) {
+            classifier = new WekaSegmentation(true);
+            if (! classifier.loadClassifier(classifierFile.getPath())) {
+                created.decrementAndGet();
+                throw new IllegalStateException("Error loading classifier " + classifierFile);
+            }
+            return classifier;
+        }
+        return classifiers.take();
+    }
+
+    class FeatureParameters {
+        private float minSigma = Float.MAX_VALUE;
+        private float maxSigma = 0;
+        private boolean[] enabled = new boolean[FeatureStack3D.availableFeatures.length];
+        private int count;
+
+        FeatureParameters(Instances header) {
+            count = header.numAttributes() - 1;
+            Enumeration<Attribute> attributes = header.enumerateAttributes();
+            while (attributes.hasMoreElements()) {
+                String name = attributes.nextElement().name();
+                for (int i = 0; i < FeatureStack3D.availableFeatures.length; i++) {
+                    String feature = FeatureStack3D.availableFeatures[i];
+                    if (name.startsWith(feature)) {
+                        enabled[i] = true;
+                        if (isSigmaFeature(feature)) {
+                            String[] tokens = name.split("_");
+                            float sigma = Float.parseFloat(tokens[tokens.length - 1]);
+                            minSigma = Math.min(minSigma, sigma);
+                            maxSigma = Math.max(maxSigma, sigma);
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean isSigmaFeature(String feature) {
+            for (String f : SIGMA_FEATURES) {
+                if (f.equals(feature)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long bytesPerVoxel() {
+            return 4L * (count + 1 + weka.getNumOfClasses());
+        }
+    }
+
+    class Tile {
+        int x0, y0, x1, y1;
+        int hx0, hy0, hx1, hy1;
+
+        Tile(int x0, int y0, int width, int height) {
+            this.x0 = x0;
+            this.y0 = y0;
+            x1 = Math.min(x0 + tileWidth, width);
+            y1 = Math.min(y0 + tileHeight, height);
+            hx0 = Math.max(0, x0 - halo);
+            hy0 = Math.max(0, y0 - halo);
+            hx1 = Math.min(width, x1 + halo);
+            hy1 = Math.min(height, y1 + halo);
+        }
+
+        int haloWidth() {
+            return hx1 - hx0;
+        }
+
+        int haloHeight() {
+            return hy1 - hy0;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + x0 + "," + y0 + "]-[" + x1 + "," + y1 + "]";
+        }
+    }
+
+    class ImageClassifier implements Callable<Object> {
+
+        private File file;
+        private ExecutorService pool;
+        private ImagePlus image;
+        private float[][][] pmap;
+
+        ImageClassifier(File file, ExecutorService pool) {
+            this.file = file;
+            this.pool = pool;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            logService.log(LogLevel.INFO, "Classifying " + file.getPath());
+            String sample = file.getName();
+            DatasetIndex.Entry entry = catalog.get(file, dataset);
+            if (catalog.contains(file) && (entry == null)) {
+                logService.log(LogLevel.WARN, "No " + dataset + " in " + file.getPath());
+                return this;
+            }
+
+            // The input and probability maps are held until they are written, which is reserved from the budget
+            int permits = 0;
+            if (entry != null) {
+                permits = reserve(entry.bytes(), entry.voxels());
+            }
+            ImagePlus[] images = new ImagePlus[2];
+            try {
+                report.measure(sample, "read", stage -> {
+                    images[0] = HDF5ImageJ.hdf5read(file.getPath(), dataset, "zyx");
+                    stage.read(images[0]);
+                });
+                if (images[0] == null) {
+                    logService.log(LogLevel.WARN, "Failed to open " + dataset + " in " + file.getPath());
+                    budget.release(permits);
+                    return this;
+                }
+                if (entry == null) {
+                    permits = reserve(RunReport.bytes(images[0]), RunReport.voxels(images[0]));
+                }
+            } catch (Exception e) {
+                budget.release(permits);
+                throw e;
+            }
+            int reserved = permits;
+
+            try {
+                report.measure(sample, "classify", stage -> {
+                    images[1] = classify(images[0]);
+                    stage.voxels(RunReport.voxels(images[0]));
+                });
+            } catch (Exception e) {
+                budget.release(reserved);
+                throw e;
+            } finally {
+                images[0].close();
+            }
+            report.measure(sample, "write", stage -> {
+                stage.written(images[1]);
+                writer.hdf5(file, images[1], pmapDataset, compressionLevel).whenComplete((v, e) -> {
+                    budget.release(reserved);
+                    if (e == null) {
+                        logService.log(LogLevel.INFO, "Probability maps saved to " + file.getPath());
+                    }
+                });
+            });
+
+            return this;
+        }
+
+        // At most half of the budget is reserved for whole images, so the tiles can always be classified
+        private int reserve(long bytes, long voxels) throws InterruptedException {
+            long total = bytes + 4L * weka.getNumOfClasses() * voxels;
+            int permits = (int) Math.min(budgetPermits / 2, total / (1024 * 1024));
+            budget.acquire(permits);
+            return permits;
+        }
+
+        ImagePlus classify(ImagePlus input) throws Exception {
+            image = input;
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int slices = image.getNSlices();
+            int classes = weka.getNumOfClasses();
+            pmap = new float[classes][slices][width * height];
+
+            ExecutorCompletionService<Tile> ecs = new ExecutorCompletionService<>(pool);
+            int submitted = 0;
+            for (int y = 0; y < height; y += tileHeight) {
+                for (int x = 0; x < width; x += tileWidth) {
+                    ecs.submit(new TileClassifier(new Tile(x, y, width, height)));
+                    submitted++;
+                }
+            }
+
+            int total = submitted;
+            while (submitted > 0) {
+                Tile tile = ecs.take().get();
+                submitted--;
+                logService.log(LogLevel.INFO, "Tile " + tile + " done (" + (total - submitted) + "/" + total + ")");
+            }
+
+            ImagePlus result = createResult(classes, slices, width, height);
+            image = null;
+            pmap = null;
+
+            return result;
+        }
+
+        private ImagePlus createResult(int classes, int slices, int width, int height) {
+            ImageStack stack = new ImageStack(width, height);
+            for (int z = 0; z < slices; z++) {
+                for (int c = 0; c < classes; c++) {
+                    stack.addSlice(new FloatProcessor(width, height, pmap[c][z]));
+                }
+            }
+            ImagePlus result = new ImagePlus("Probability maps", stack);
+            result.setDimensions(classes, slices, 1);
+            result.setOpenAsHyperStack(true);
+            result.copyScale(image);
+            return result;
+        }
+
+        class TileClassifier implements Callable<Tile> {
+
+            private Tile tile;
+
+            TileClassifier(Tile tile) {
+                this.tile = tile;
+            }
+
+            @Override
+            public Tile call() throws Exception {
+                int slices = image.getNSlices();
+                long bytes = features.bytesPerVoxel() * tile.haloWidth() * tile.haloHeight() * slices;
+                // Tiles fit in the part of the budget which is never reserved for whole images
+                int permits = (int) Math.min(budgetPermits - budgetPermits / 2, Math.max(1, bytes / (1024 * 1024)));
+                budget.acquire(permits);
+                try {
+                    ImageStack cropped = image.getStack().crop(tile.hx0, tile.hy0, 0,
+                            tile.haloWidth(), tile.haloHeight(), slices);
+                    ImagePlus input = new ImagePlus("Tile " + tile, cropped);
+                    input.copyScale(image);
+
+                    FeatureStack3D featureStack = new FeatureStack3D(input);
+                    featureStack.setMinimumSigma(features.minSigma);
+                    featureStack.setMaximumSigma(features.maxSigma);
+                    featureStack.setEnableFeatures(features.enabled);
+                    if (! featureStack.updateFeaturesMT()) {
+                        throw new IllegalStateException("Failed to compute features for tile " + tile);
+                    }
+                    FeatureStackArray fsa = featureStack.getFeatureStackArray();
+
+                    ImagePlus result;
+                    WekaSegmentation classifier = borrowClassifier();
+                    try {
+                        result = classifier.applyClassifier(fsa, Math.max(1, threads / copies), true);
+                    } finally {
+                        classifiers.add(classifier);
+                    }
+                    result.setDimensions(weka.getNumOfClasses(), slices, 1);
+                    stitch(result);
+                    result.close();
+                    input.close();
+                } finally {
+                    budget.release(permits);
+                }
+                return tile;
+            }
+
+            private void stitch(ImagePlus result) {
+                int width = image.getWidth();
+                int ox = tile.x0 - tile.hx0;
+                int oy = tile.y0 - tile.hy0;
+                int length = tile.x1 - tile.x0;
+                ImageStack stack = result.getStack();
+                for (int c = 0; c < pmap.length; c++) {
+                    for (int z = 0; z < pmap[c].length; z++) {
+                        ImageProcessor ip = stack.getProcessor(result.getStackIndex(c + 1, z + 1, 1));
+                        float[] src = (float[]) ip.convertToFloat().getPixels();
+                        float[] dst = pmap[c][z];
+                        for (int y = tile.y0; y < tile.y1; y++) {
+                            System.arraycopy(src, (y - tile.y0 + oy) * tile.haloWidth() + ox,
+                                    dst, y * width + tile.x0, length);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String... args) {
+        Logger root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+
+        final ImageJ ij = new ImageJ();
+        ij.launch(args);
+
+        int received = 0;
+        boolean errors = false;
+
+        while(received < 1 && !errors) {
+            Future future = ij.command().run(Classification.class, true);
+            try {
+                future.get();
+                received++;
+            }
+            catch(Exception e) {
+                errors = true;
+            }
+        }
+
+        System.exit(0);
+    }
+}
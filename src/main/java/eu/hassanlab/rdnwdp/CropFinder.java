@@ -5,11 +5,10 @@ import io.scif.services.DatasetIOService;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imagej.axis.CalibratedAxis;
-import net.imagej.ops.OpService;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
 import org.scijava.command.Command;
 import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
@@ -19,11 +18,8 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import sc.fiji.hdf5.HDF5ImageJ;
-import sc.fiji.hdf5.DataSetInfo;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -45,12 +41,15 @@ public class CropFinder implements Command {
     @Parameter
     private DatasetService datasetService;
 
-    @Parameter
-    private OpService opService;
-
-    @Parameter(label = "Input file")
+    @Parameter(label = "Input file", required = false)
     private File inputFile;
 
+    @Parameter(label = "Input folder (batch mode)", style = "directory", required = false)
+    private File inputFolder;
+
+    @Parameter(label = "Input file pattern (batch mode)")
+    private String inputGlob = "**.{tif,tiff}";
+
     @Parameter(label = "Search folder", style = "directory")
     private File searchFolder;
 
@@ -66,7 +65,7 @@ public class CropFinder implements Command {
     @Parameter(label = "Mask dataset")
     private String dsMask;
 
-    @Parameter(label = "Label file")
+    @Parameter(label = "Label file (batch mode: <input>_Label.h5)", required = false)
     private File labelFile;
 
     @Parameter(label = "Label dataset")
@@ -78,101 +77,162 @@ public class CropFinder implements Command {
     @Parameter(label = "Number of threads", required = false)
     private Integer threads;
 
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    private RunReport report = new RunReport("CropFinder");
+    private AsyncWriter writer;
+
+    private Map<File, Match> matches;
+
     @Override
     public void run() {
-        List<File> list = new ArrayList<>();
-        try {
-            Files.walk(searchFolder.toPath()).forEach(entry -> {
-                File file = entry.toFile();
-                if (file.isFile() && file.getPath().endsWith(".h5") && (filterString.isEmpty() || file.getPath().contains(filterString))) {
-                        list.add(file);
-                }
-            });
-        } catch (IOException e) {
-            logService.log(LogLevel.WARN, "Error when walking path " + searchFolder.getPath());
+        report = new RunReport("CropFinder");
+        if (threads == null) {
+            threads = Runtime.getRuntime().availableProcessors();
         }
 
-        Dataset inputImage;
-        try {
-            inputImage = ioService.open(inputFile.getPath());
-        } catch (Exception e) {
+        Map<File, Dataset> inputs = openInputs();
+        if (inputs.isEmpty()) {
+            logService.log(LogLevel.ERROR, "No input images to search for");
             return;
         }
 
-        Map<File, Future<ShiftCalculator.Alignment>> futures = new HashMap<>();
+        // Each reference is read once and matched against all the inputs
+        matches = new ConcurrentHashMap<>();
         ExecutorService pool = Executors.newFixedThreadPool(threads);
-
-        for (File referenceFile : list) {
-            AlignmentCalculator calculator = new AlignmentCalculator(inputImage, referenceFile, dsTrain);
-            futures.put(referenceFile, pool.submit(calculator));
+        List<Future<Object>> futures = Collections.synchronizedList(new ArrayList<>());
+        try {
+            new SampleDiscovery(searchFolder, logService).extension(".h5").contains(filterString).stream(file ->
+                    futures.add(pool.submit(new ReferenceMatcher(file, inputs))));
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logService.log(LogLevel.WARN, "One of the alignment threads failed!", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            logService.log(LogLevel.WARN, "Reference search interrupted!");
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            pool.shutdown();
         }
 
-        File bestFile = null;
-        ShiftCalculator.Alignment bestAlignment = null;
-
-        for(Map.Entry<File, Future<ShiftCalculator.Alignment>> entry : futures.entrySet()) {
-            File referenceFile = entry.getKey();
-            Future<ShiftCalculator.Alignment> future = entry.getValue();
+        boolean batch = inputFolder != null;
+        writer = new AsyncWriter(logService);
+        for (Map.Entry<File, Dataset> input : inputs.entrySet()) {
+            Match match = matches.get(input.getKey());
+            if (match == null) {
+                logService.log(LogLevel.WARN, "No reference found for " + input.getKey());
+                continue;
+            }
+            logService.log(LogLevel.INFO, "The image " + input.getKey() + " comes from " + match.reference +
+                    " cropped " + match.alignment);
 
-            try {
-                ShiftCalculator.Alignment alignment = future.get();
-                if (bestAlignment == null) {
-                    bestAlignment = alignment;
-                    bestFile = referenceFile;
-                }
-                if (alignment.count > bestAlignment.count) {
-                    bestAlignment = alignment;
-                    bestFile = referenceFile;
-                }
-            } catch (Exception e) {}
+            String name = input.getKey().getName().replaceFirst("\\.[^.]*$", "");
+            File labels = batch ? new File(input.getKey().getParentFile(), name + "_Label.h5") : labelFile;
+            File output = batch ? new File(outputFolder, name + ".h5") : new File(outputFolder, match.reference.getName());
+            saveCrop(input.getValue(), match, labels, output);
         }
+        writer.close();
 
-        logService.log(LogLevel.INFO, "The image comes from " + bestFile + " cropped " + bestAlignment);
+        report.save(reportFile, logService);
+    }
 
-        if (bestFile == null) {
-            return;
+    private Map<File, Dataset> openInputs() {
+        List<File> files = new ArrayList<>();
+        if (inputFile != null) {
+            files.add(inputFile);
+        }
+        if (inputFolder != null) {
+            files.addAll(new SampleDiscovery(inputFolder, logService).glob(inputGlob).list());
         }
 
-        ArrayList<DataSetInfo> datasets = HDF5ImageJ.hdf5list(bestFile.getPath());
+        Map<File, Dataset> inputs = new LinkedHashMap<>();
+        for (File file : files) {
+            try {
+                inputs.put(file, ioService.open(file.getPath()));
+            } catch (Exception e) {
+                logService.log(LogLevel.ERROR, "Failed to open " + file, e);
+            }
+        }
+        return inputs;
+    }
 
-        Dataset referenceImage = readHDF5(bestFile, dsTrain, "zyx");
+    private void saveCrop(Dataset inputImage, Match match, File labels, File output) {
         Map<String, Dataset> datasetMap = new HashMap<>();
 
-        for (DataSetInfo dataset : datasets) {
-            if (dataset.getPath().equals(dsReference)) {
-                datasetMap.put("/training/reference", processDataset(bestFile, dataset, bestAlignment, inputImage, referenceImage));
-            } else if (dataset.getPath().equals(dsMask)) {
-                datasetMap.put("/training/mask", processDataset(bestFile, dataset, bestAlignment, inputImage, referenceImage));
-            } else if (dataset.getPath().equals(dsTrain)) {
-                datasetMap.put("/training/data", processDataset(bestFile, dataset, bestAlignment, inputImage, referenceImage));
+        // The reference file is opened once for listing and reading all of its datasets
+        try (HDF5Session session = HDF5Session.read(match.reference)) {
+            long[] reference = session.dimensions(dsTrain);
+            for (String dataset : session.datasets()) {
+                if (dataset.equals(dsReference)) {
+                    datasetMap.put("/training/reference", processDataset(session, dataset, match.alignment, inputImage, reference));
+                } else if (dataset.equals(dsMask)) {
+                    datasetMap.put("/training/mask", processDataset(session, dataset, match.alignment, inputImage, reference));
+                } else if (dataset.equals(dsTrain)) {
+                    datasetMap.put("/training/data", processDataset(session, dataset, match.alignment, inputImage, reference));
+                }
             }
         }
 
-        datasetMap.put("/training/labels", createDataset(readHDF5(labelFile, dsLabel, "zyxc"), referenceImage));
+        Dataset training = datasetMap.get("/training/data");
+        if ((labels != null) && labels.isFile()) {
+            Dataset labelImage = readHDF5(labels, dsLabel, "zyxc");
+            datasetMap.put("/training/labels", training != null ? createDataset(labelImage, training) : labelImage);
+        } else {
+            logService.log(LogLevel.WARN, "Label file " + labels + " not found");
+        }
 
-        saveHDF5(datasetMap, outputFolder + File.separator + bestFile.getName());
+        RunReport.Stage stage = report.start(output.getName(), "write");
+        saveHDF5(datasetMap, output);
+        datasetMap.values().forEach(dataset -> stage.written(RunReport.bytes(dataset)));
+        stage.done();
+    }
+
+    private void offer(File input, File reference, ShiftCalculator.Alignment alignment) {
+        if (alignment == null) {
+            return;
+        }
+        matches.merge(input, new Match(reference, alignment), (current, candidate) -> {
+            // Ties are resolved by the file name, so the result does not depend on the completion order
+            if ((candidate.alignment.count > current.alignment.count) ||
+                    ((candidate.alignment.count == current.alignment.count) &&
+                            (candidate.reference.compareTo(current.reference) < 0))) {
+                return candidate;
+            }
+            return current;
+        });
+    }
 
-        pool.shutdown();
+    private static long size(Dataset image, AxisType axis) {
+        int d = image.dimensionIndex(axis);
+        return d >= 0 ? image.dimension(d) : 1;
     }
 
     private Dataset readHDF5(File file, String dataset, String layout) {
         ImagePlus imp =  HDF5ImageJ.hdf5read(file.getPath(), dataset, layout);
-        Dataset ds = convertService.convert(imp, Dataset.class).duplicate();
+        Dataset ds = ImageBridge.toDataset(imp, datasetService, convertService);
         imp.close();
         return ds;
     }
 
-    private void saveHDF5(Dataset img, String path, String dataset) {
-        ImagePlus imp = convertService.convert(img.duplicate(), ImagePlus.class);
-        logService.log(LogLevel.INFO, "Saving " + dataset + img + " to " + path);
-        HDF5ImageJ.hdf5write(imp, path, dataset, false);
-        imp.close();
+    private void saveHDF5(Dataset img, File file, String dataset) {
+        ImagePlus imp = ImageBridge.wrap(img);
+        if (imp == null) {
+            imp = convertService.convert(img.duplicate(), ImagePlus.class);
+        }
+        logService.log(LogLevel.INFO, "Saving " + dataset + img + " to " + file);
+        writer.hdf5(file, imp, dataset);
     }
 
-    private void saveHDF5(Map<String, Dataset> datasets, String path) {
+    // All the datasets of an output file are queued together and written in a single commit
+    private void saveHDF5(Map<String, Dataset> datasets, File file) {
         for (Map.Entry<String, Dataset> entry : datasets.entrySet()) {
             if (entry.getValue() != null) {
-                saveHDF5(entry.getValue(), path, entry.getKey());
+                saveHDF5(entry.getValue(), file, entry.getKey());
             }
         }
     }
@@ -187,62 +247,97 @@ public class CropFinder implements Command {
         return result;
     }
 
-    private Dataset processDataset(File file, DataSetInfo dataset, ShiftCalculator.Alignment alignment, Dataset inputImg, Dataset referenceImg) {
-        Dataset img = readHDF5(file, dataset.getPath(), "zyx");
-        if ((img.getWidth() == referenceImg.getWidth()) && (img.getHeight() == referenceImg.getHeight())) {
-            long[] min = new long[img.numDimensions()];
-            long[] max = new long[img.numDimensions()];
-
-            for (int i = 0; i < img.numDimensions(); i++) {
-                if (img.axis(i).type() == Axes.X) {
-                    min[i] = alignment.getX() - 1;
-                    max[i] = min[i] + inputImg.getWidth() - 1;
-                } else if (img.axis(i).type() == Axes.Y) {
-                    min[i] = alignment.getY() - 1;
-                    max[i] = min[i] + inputImg.getHeight() - 1;
-                } else {
-                    min[i] = img.min(i);
-                    max[i] = img.max(i);
-                }
-            }
-            Interval interval = new FinalInterval(min, max);
-            logService.log(LogLevel.INFO, "Cropping " + dataset.getPath() + " to " + Arrays.toString(min) + "-" + Arrays.toString(max));
-            RandomAccessibleInterval rai = opService.transform().crop(img.getImgPlus(), interval);
+    // Only the cropped block of the dataset is read, datasets are stored as zyx (or yx)
+    private Dataset processDataset(HDF5Session session, String dataset, ShiftCalculator.Alignment alignment, Dataset inputImg, long[] reference) {
+        long[] dimensions = session.dimensions(dataset);
+        int x = dimensions.length - 1;
+        int y = dimensions.length - 2;
+        if ((dimensions[x] != reference[reference.length - 1]) || (dimensions[y] != reference[reference.length - 2])) {
+            return null;
+        }
 
-            return createDataset(rai, referenceImg);
+        long[] offset = new long[dimensions.length];
+        int[] block = new int[dimensions.length];
+        for (int i = 0; i < dimensions.length; i++) {
+            block[i] = (int) dimensions[i];
+        }
+        offset[x] = alignment.getX() - 1;
+        offset[y] = alignment.getY() - 1;
+        block[x] = (int) inputImg.getWidth();
+        block[y] = (int) inputImg.getHeight();
+        if ((offset[x] < 0) || (offset[y] < 0) || (offset[x] + block[x] > dimensions[x]) ||
+                (offset[y] + block[y] > dimensions[y])) {
+            logService.log(LogLevel.WARN, "Crop of " + dataset + " is outside of the image");
+            return null;
         }
 
-        return null;
+        logService.log(LogLevel.INFO, "Cropping " + dataset + " to " + Arrays.toString(offset) + "+" + Arrays.toString(block));
+        ImagePlus imp = session.read(dataset, offset, block);
+        Dataset ds = ImageBridge.toDataset(imp, datasetService, convertService);
+        imp.close();
+        return ds;
     }
 
-    class AlignmentCalculator implements Callable<ShiftCalculator.Alignment> {
-
-        private Dataset inputImage;
-        private Dataset referenceImage;
+    private class Match {
+        private File reference;
+        private ShiftCalculator.Alignment alignment;
 
-        AlignmentCalculator(Dataset inputImage, Dataset referenceImage) {
-            this.inputImage = inputImage;
-            this.referenceImage = referenceImage;
+        Match(File reference, ShiftCalculator.Alignment alignment) {
+            this.reference = reference;
+            this.alignment = alignment;
         }
+    }
 
-        AlignmentCalculator(Dataset inputImage, File referenceFile, String referenceDataset) {
-            this.inputImage = inputImage;
-            ImagePlus imp =  HDF5ImageJ.hdf5read(referenceFile.getPath(), referenceDataset, "zyx");
-            this.referenceImage = convertService.convert(imp, Dataset.class).duplicate();
-            imp.close();
+    class ReferenceMatcher implements Callable<Object> {
+
+        private File referenceFile;
+        private Map<File, Dataset> inputs;
+        private String name;
+        private long queued;
+
+        ReferenceMatcher(File referenceFile, Map<File, Dataset> inputs) {
+            this.referenceFile = referenceFile;
+            this.inputs = inputs;
+            name = referenceFile.getName();
+            queued = System.nanoTime();
         }
 
         @Override
-        public ShiftCalculator.Alignment call() {
+        public Object call() throws Exception {
+            Dataset[] reference = new Dataset[1];
+            report.measure(name, "reference", queued, stage -> {
+                ImagePlus imp = HDF5ImageJ.hdf5read(referenceFile.getPath(), dsTrain, "zyx");
+                reference[0] = ImageBridge.toDataset(imp, datasetService, convertService);
+                stage.read(imp);
+            });
 
-            Future future = commandService.run(ShiftCalculator.class, true,
-                    "reference", referenceImage, "input", inputImage, "sampling", 0, "strict", true);
             try {
-                CommandModule result = (CommandModule) future.get();
-                return (ShiftCalculator.Alignment) result.getOutput("result");
-            } catch (Exception e) {}
+                for (Map.Entry<File, Dataset> input : inputs.entrySet()) {
+                    Dataset inputImage = input.getValue();
+                    // Strict alignment needs the same number of slices, and the input has to fit in the reference
+                    if ((size(inputImage, Axes.Z) != size(reference[0], Axes.Z)) ||
+                            (size(inputImage, Axes.X) > size(reference[0], Axes.X)) ||
+                            (size(inputImage, Axes.Y) > size(reference[0], Axes.Y))) {
+                        continue;
+                    }
+                    try {
+                        report.measure(name, "align", stage -> {
+                            stage.voxels(Intervals.numElements(inputImage) + Intervals.numElements(reference[0]));
+                            Future future = commandService.run(ShiftCalculator.class, true,
+                                    "reference", reference[0], "input", inputImage, "sampling", 0, "strict", true);
+                            CommandModule result = (CommandModule) future.get();
+                            offer(input.getKey(), referenceFile, (ShiftCalculator.Alignment) result.getOutput("result"));
+                        });
+                    } catch (Exception e) {
+                        logService.log(LogLevel.WARN, "Alignment of " + input.getKey() + " to " + name + " failed!", e);
+                    }
+                }
+            } finally {
+                // Only the references being matched are kept in memory
+                reference[0] = null;
+            }
 
-            return null;
+            return this;
         }
     }
 }
@@ -0,0 +1,420 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.systemsx.cisd.hdf5.HDF5DataClass;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5DataTypeInformation;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+
+class DatasetIndex {
+
+    private static final String ELEMENT_SIZE = "element_size_um";
+
+    private Map<String, Sample> samples;
+
+    DatasetIndex() {
+        samples = new ConcurrentHashMap<>();
+    }
+
+    static class Entry {
+        private String path;
+        private long[] shape;
+        private String type;
+        private int elementSize;
+        private int[] chunks;
+        private double[] scale;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+        private int thumbnailWidth;
+        private int thumbnailHeight;
+        private byte[] thumbnail;
+
+        String getPath() {
+            return path;
+        }
+
+        long[] getShape() {
+            return shape;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        int[] getChunks() {
+            return chunks;
+        }
+
+        double getMin() {
+            return min;
+        }
+
+        double getMax() {
+            return max;
+        }
+
+        int width() {
+            return (int) shape[shape.length - 1];
+        }
+
+        int height() {
+            return shape.length > 1 ? (int) shape[shape.length - 2] : 1;
+        }
+
+        int depth() {
+            return shape.length > 2 ? (int) shape[shape.length - 3] : 1;
+        }
+
+        long voxels() {
+            long voxels = 1;
+            for (long size : shape) {
+                voxels *= size;
+            }
+            return voxels;
+        }
+
+        long bytes() {
+            return voxels() * elementSize;
+        }
+
+        Calibration calibration() {
+            Calibration calibration = new Calibration();
+            if (scale != null) {
+                calibration.pixelDepth = scale[0];
+                calibration.pixelHeight = scale[1];
+                calibration.pixelWidth = scale[2];
+                calibration.setUnit("micron");
+            }
+            return calibration;
+        }
+
+        ImagePlus thumbnail() {
+            if (thumbnail == null) {
+                return null;
+            }
+            return new ImagePlus(path, new ByteProcessor(thumbnailWidth, thumbnailHeight, thumbnail));
+        }
+    }
+
+    private static class Sample {
+        private long length;
+        private long modified;
+        private Map<String, Entry> datasets = new LinkedHashMap<>();
+    }
+
+    private static String key(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    // Entries are only returned while the file has not changed since it was indexed
+    private Sample sample(File file) {
+        Sample sample = samples.get(key(file));
+        if ((sample == null) || (sample.length != file.length()) || (sample.modified != file.lastModified())) {
+            return null;
+        }
+        return sample;
+    }
+
+    boolean contains(File file) {
+        return sample(file) != null;
+    }
+
+    Entry get(File file, String dataset) {
+        Sample sample = sample(file);
+        return sample != null ? sample.datasets.get(dataset) : null;
+    }
+
+    Collection<Entry> get(File file) {
+        Sample sample = sample(file);
+        return sample != null ? sample.datasets.values() : Collections.emptyList();
+    }
+
+    int size() {
+        return samples.size();
+    }
+
+    void put(File file, long length, long modified, List<Entry> entries) {
+        Sample sample = new Sample();
+        sample.length = length;
+        sample.modified = modified;
+        for (Entry entry : entries) {
+            sample.datasets.put(entry.path, entry);
+        }
+        samples.put(key(file), sample);
+    }
+
+    void retain(Collection<File> files) {
+        Set<String> keys = new HashSet<>();
+        for (File file : files) {
+            keys.add(key(file));
+        }
+        samples.keySet().retainAll(keys);
+    }
+
+    // Shape, type and calibration are read from the metadata only
+    static Entry describe(HDF5Session session, String path) {
+        HDF5DataSetInformation info = session.info(path);
+        HDF5DataTypeInformation type = info.getTypeInformation();
+        Entry entry = new Entry();
+        entry.path = path;
+        entry.shape = info.getDimensions();
+        entry.elementSize = type.getElementSize();
+        if (type.getDataClass() == HDF5DataClass.FLOAT) {
+            entry.type = "float" + 8 * entry.elementSize;
+        } else if (type.getDataClass() == HDF5DataClass.INTEGER) {
+            entry.type = (type.isSigned() ? "int" : "uint") + 8 * entry.elementSize;
+        } else {
+            entry.type = type.getDataClass().toString().toLowerCase();
+        }
+        entry.chunks = info.tryGetChunkSizes();
+        float[] scale = session.elementSize(path);
+        if ((scale != null) && (scale.length == 3)) {
+            entry.scale = new double[] {scale[0], scale[1], scale[2]};
+        }
+        return entry;
+    }
+
+    // Statistics and the maximum projection thumbnail are computed reading one plane at a time
+    static Entry scan(HDF5Session session, String path, int thumbnailSize) {
+        Entry entry = describe(session, path);
+        boolean numeric = entry.type.startsWith("int") || entry.type.startsWith("uint") ||
+                entry.type.startsWith("float");
+        if ((! numeric) || (entry.shape.length < 2) || (entry.shape.length > 3)) {
+            return entry;
+        }
+
+        int width = entry.width();
+        int height = entry.height();
+        int depth = entry.depth();
+        float[] projection = saved(session.getFile(), path, width, height, entry);
+        double min = entry.min;
+        double max = entry.max;
+        if (projection == null) {
+            projection = new float[width * height];
+            Arrays.fill(projection, Float.NEGATIVE_INFINITY);
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            for (int z = 0; z < depth; z++) {
+                long[] offset = entry.shape.length > 2 ? new long[] {z, 0, 0} : new long[] {0, 0};
+                int[] block = entry.shape.length > 2 ? new int[] {1, height, width} : new int[] {height, width};
+                ImagePlus plane = session.read(path, offset, block);
+                Object pixels = plane.getStack().getPixels(1);
+                for (int i = 0; i < projection.length; i++) {
+                    float value = value(pixels, i);
+                    projection[i] = Math.max(projection[i], value);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                plane.close();
+            }
+            entry.min = min;
+            entry.max = max;
+        }
+
+        // The thumbnail keeps the aspect ratio, each thumbnail pixel is the maximum of the pixels it covers
+        double step = Math.max(1.0, (double) Math.max(width, height) / thumbnailSize);
+        int tw = Math.max(1, (int) Math.ceil(width / step));
+        int th = Math.max(1, (int) Math.ceil(height / step));
+        float[] reduced = new float[tw * th];
+        Arrays.fill(reduced, Float.NEGATIVE_INFINITY);
+        for (int y = 0; y < height; y++) {
+            int ty = Math.min(th - 1, (int) (y / step));
+            for (int x = 0; x < width; x++) {
+                int t = ty * tw + Math.min(tw - 1, (int) (x / step));
+                reduced[t] = Math.max(reduced[t], projection[y * width + x]);
+            }
+        }
+        double range = max > min ? max - min : 1;
+        byte[] thumbnail = new byte[reduced.length];
+        for (int t = 0; t < reduced.length; t++) {
+            thumbnail[t] = (byte) Math.round(255 * (reduced[t] - min) / range);
+        }
+        entry.thumbnailWidth = tw;
+        entry.thumbnailHeight = th;
+        entry.thumbnail = thumbnail;
+        return entry;
+    }
+
+    // The saved maximum and minimum projections of an aligned channel give the statistics and the thumbnail without
+    // reading the planes
+    private static float[] saved(File file, String path, int width, int height, Entry entry) {
+        int channel = Projections.channel(path);
+        ImagePlus top = channel >= 0 ? Projections.get(file, Projections.MAX, channel) : null;
+        ImagePlus bottom = top != null ? Projections.get(file, Projections.MIN, channel) : null;
+        if ((bottom == null) || (top.getWidth() != width) || (top.getHeight() != height) ||
+                (bottom.getWidth() != width) || (bottom.getHeight() != height)) {
+            return null;
+        }
+        Object projection = top.getStack().getPixels(1);
+        Object low = bottom.getStack().getPixels(1);
+        if ((! (projection instanceof float[])) || (! (low instanceof float[]))) {
+            return null;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < width * height; i++) {
+            min = Math.min(min, ((float[]) low)[i]);
+            max = Math.max(max, ((float[]) projection)[i]);
+        }
+        entry.min = min;
+        entry.max = max;
+        return (float[]) projection;
+    }
+
+    private static float value(Object pixels, int i) {
+        if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[i] & 0xff;
+        } else if (pixels instanceof short[]) {
+            return ((short[]) pixels)[i] & 0xffff;
+        }
+        return ((float[]) pixels)[i];
+    }
+
+    static DatasetIndex load(File file) throws IOException {
+        DatasetIndex index = new DatasetIndex();
+        Map<String, Object> root;
+        try (Reader in = new FileReader(file)) {
+            // The catalog is shared between the nodes, so tagged objects in it are rejected
+            root = new Yaml(new SafeConstructor()).load(in);
+        }
+        if (root == null) {
+            return index;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, Object>> files = (Map<String, Map<String, Object>>) root.get("files");
+        if (files == null) {
+            return index;
+        }
+        for (Map.Entry<String, Map<String, Object>> item : files.entrySet()) {
+            Map<String, Object> values = item.getValue();
+            Sample sample = new Sample();
+            sample.length = ((Number) values.get("length")).longValue();
+            sample.modified = ((Number) values.get("modified")).longValue();
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> datasets = (Map<String, Map<String, Object>>) values.get("datasets");
+            if (datasets != null) {
+                for (Map.Entry<String, Map<String, Object>> dataset : datasets.entrySet()) {
+                    sample.datasets.put(dataset.getKey(), entry(dataset.getKey(), dataset.getValue()));
+                }
+            }
+            index.samples.put(item.getKey(), sample);
+        }
+        return index;
+    }
+
+    // A missing or unreadable catalog is the same as an empty one, the commands then read the files themselves
+    static DatasetIndex open(File file, LogService logService) {
+        if ((file == null) || (! file.isFile())) {
+            return new DatasetIndex();
+        }
+        try {
+            DatasetIndex index = load(file);
+            logService.log(LogLevel.INFO, "Using catalog " + file + " of " + index.size() + " files");
+            return index;
+        } catch (Exception e) {
+            logService.log(LogLevel.WARN, "Failed to read catalog " + file, e);
+            return new DatasetIndex();
+        }
+    }
+
+    private static Entry entry(String path, Map<String, Object> values) {
+        Entry entry = new Entry();
+        entry.path = path;
+        entry.shape = toLongs(values.get("shape"));
+        entry.type = (String) values.get("type");
+        entry.elementSize = ((Number) values.get("elementSize")).intValue();
+        long[] chunks = toLongs(values.get("chunks"));
+        if (chunks != null) {
+            entry.chunks = Arrays.stream(chunks).mapToInt(c -> (int) c).toArray();
+        }
+        entry.scale = toDoubles(values.get(ELEMENT_SIZE));
+        if (values.containsKey("min")) {
+            entry.min = ((Number) values.get("min")).doubleValue();
+            entry.max = ((Number) values.get("max")).doubleValue();
+        }
+        if (values.containsKey("thumbnail")) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> thumbnail = (Map<String, Object>) values.get("thumbnail");
+            entry.thumbnailWidth = ((Number) thumbnail.get("width")).intValue();
+            entry.thumbnailHeight = ((Number) thumbnail.get("height")).intValue();
+            entry.thumbnail = Base64.getDecoder().decode((String) thumbnail.get("data"));
+        }
+        return entry;
+    }
+
+    private static long[] toLongs(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return ((List<?>) value).stream().mapToLong(v -> ((Number) v).longValue()).toArray();
+    }
+
+    private static double[] toDoubles(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return ((List<?>) value).stream().mapToDouble(v -> ((Number) v).doubleValue()).toArray();
+    }
+
+    void save(File file) throws IOException {
+        Map<String, Object> files = new TreeMap<>();
+        for (Map.Entry<String, Sample> item : samples.entrySet()) {
+            Sample sample = item.getValue();
+            Map<String, Object> datasets = new LinkedHashMap<>();
+            for (Entry entry : sample.datasets.values()) {
+                Map<String, Object> values = new LinkedHashMap<>();
+                values.put("shape", Arrays.stream(entry.shape).boxed().collect(Collectors.toList()));
+                values.put("type", entry.type);
+                values.put("elementSize", entry.elementSize);
+                if (entry.chunks != null) {
+                    values.put("chunks", Arrays.stream(entry.chunks).boxed().collect(Collectors.toList()));
+                }
+                if (entry.scale != null) {
+                    values.put(ELEMENT_SIZE, Arrays.stream(entry.scale).boxed().collect(Collectors.toList()));
+                }
+                if (! Double.isNaN(entry.min)) {
+                    values.put("min", entry.min);
+                    values.put("max", entry.max);
+                }
+                if (entry.thumbnail != null) {
+                    Map<String, Object> thumbnail = new LinkedHashMap<>();
+                    thumbnail.put("width", entry.thumbnailWidth);
+                    thumbnail.put("height", entry.thumbnailHeight);
+                    thumbnail.put("data", Base64.getEncoder().encodeToString(entry.thumbnail));
+                    values.put("thumbnail", thumbnail);
+                }
+                datasets.put(entry.path, values);
+            }
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("length", sample.length);
+            values.put("modified", sample.modified);
+            values.put("datasets", datasets);
+            files.put(item.getKey(), values);
+        }
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("files", files);
+
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        options.setIndent(4);
+        try (PrintWriter out = new PrintWriter(file)) {
+            new Yaml(options).dump(root, out);
+        }
+    }
+}
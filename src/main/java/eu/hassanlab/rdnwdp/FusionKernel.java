@@ -0,0 +1,227 @@
+package eu.hassanlab.rdnwdp;
+
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.Axes;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+class FusionKernel {
+
+    private Dataset reference;
+    private List<Channel> channels;
+    private boolean bytes;
+    private int width;
+    private int height;
+
+    FusionKernel(Dataset reference, Collection<Dataset> sources) {
+        this.reference = reference;
+        bytes = type(reference) == UnsignedByteType.class;
+        width = (int) reference.dimension(reference.dimensionIndex(Axes.X));
+        height = (int) reference.dimension(reference.dimensionIndex(Axes.Y));
+        channels = new ArrayList<>();
+        for (Dataset source : sources) {
+            int c = source.dimensionIndex(Axes.CHANNEL);
+            long count = c >= 0 ? source.dimension(c) : 1;
+            for (long i = 0; i < count; i++) {
+                channels.add(new Channel(source, i));
+            }
+        }
+    }
+
+    static boolean supports(Dataset reference, Collection<Dataset> sources) {
+        Class<?> type = type(reference);
+        if ((type != UnsignedByteType.class) && (type != UnsignedShortType.class) || (! planar(reference))) {
+            return false;
+        }
+        for (Dataset source : sources) {
+            if ((type(source) != type) || (! planar(source))) {
+                return false;
+            }
+            Object img = source.getImgPlus().getImg();
+            Object storage;
+            if (img instanceof PlanarImg) {
+                storage = ((ArrayDataAccess) ((PlanarImg) img).getPlane(0)).getCurrentStorageArray();
+            } else if (img instanceof ArrayImg) {
+                storage = ((ArrayImg) img).update(null);
+                storage = storage instanceof ArrayDataAccess ? ((ArrayDataAccess) storage).getCurrentStorageArray() : null;
+            } else {
+                return false;
+            }
+            if ((storage == null) || (! storage.getClass().isArray())) {
+                return false;
+            }
+            for (AxisType axis : new AxisType[] {Axes.X, Axes.Y, Axes.Z}) {
+                long size = reference.dimension(reference.dimensionIndex(axis));
+                long sourceSize = source.dimension(source.dimensionIndex(axis));
+                if ((sourceSize > size) || (size % sourceSize != 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> type(Dataset image) {
+        return image.getImgPlus().firstElement().getClass();
+    }
+
+    private static boolean planar(Dataset image) {
+        if ((image.dimensionIndex(Axes.X) != 0) || (image.dimensionIndex(Axes.Y) != 1) ||
+                (image.dimensionIndex(Axes.Z) < 0)) {
+            return false;
+        }
+        int expected = image.dimensionIndex(Axes.CHANNEL) >= 0 ? 4 : 3;
+        if (image.numDimensions() != expected) {
+            return false;
+        }
+        for (int d = 0; d < image.numDimensions(); d++) {
+            if (image.min(d) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return channels.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    ImgPlus fuse(long[] zshifts, long zsmax, long depth, OffHeapStorage storage) {
+        int zidx = reference.dimensionIndex(Axes.Z);
+        int slices = (int) depth;
+        long[] dims = {width, height, depth, channels.size()};
+        PlanarImg output;
+        if (storage != null) {
+            output = bytes ? storage.unsignedBytes(dims) : storage.unsignedShorts(dims);
+        } else {
+            output = bytes ? PlanarImgs.unsignedBytes(dims) : PlanarImgs.unsignedShorts(dims);
+        }
+
+        IntStream.range(0, slices * channels.size()).parallel().forEach(p -> {
+            int z = p % slices;
+            Channel channel = channels.get(p / slices);
+            long zz = z + reference.min(zidx) + zshifts[p / slices] - zsmax;
+            if ((zz < 0) || (zz >= (long) channel.depth * channel.fz)) {
+                return;
+            }
+            Object plane = ((ArrayDataAccess) output.getPlane(p)).getCurrentStorageArray();
+            Object target = plane instanceof Buffer ? (bytes ? new byte[width * height] : new short[width * height]) :
+                    plane;
+            channel.copy((int) (zz / channel.fz), target);
+            if (plane instanceof ByteBuffer) {
+                ((ByteBuffer) plane).duplicate().put((byte[]) target);
+            } else if (plane instanceof ShortBuffer) {
+                ((ShortBuffer) plane).duplicate().put((short[]) target);
+            }
+        });
+
+        return new ImgPlus(output, "Aligned", new AxisType[] {Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL});
+    }
+
+    private class Channel {
+        private Img<?> img;
+        private int[] strides;
+        private int zidx;
+        private long[] position;
+        private int sourceWidth;
+        private int depth;
+        private int fx;
+        private int fz;
+        private int[] rows;
+        private int[] columns;
+
+        Channel(Dataset source, long channel) {
+            img = source.getImgPlus().getImg();
+            zidx = source.dimensionIndex(Axes.Z);
+            position = new long[source.numDimensions()];
+            int c = source.dimensionIndex(Axes.CHANNEL);
+            if (c >= 0) {
+                position[c] = channel;
+            }
+            strides = new int[source.numDimensions()];
+            int stride = 1;
+            for (int d = 2; d < source.numDimensions(); d++) {
+                strides[d] = stride;
+                stride *= (int) source.dimension(d);
+            }
+
+            sourceWidth = (int) source.dimension(0);
+            int sourceHeight = (int) source.dimension(1);
+            depth = (int) source.dimension(zidx);
+            fx = width / sourceWidth;
+            int fy = height / sourceHeight;
+            fz = (int) (reference.dimension(reference.dimensionIndex(Axes.Z)) / depth);
+
+            columns = new int[width];
+            for (int x = 0; x < width; x++) {
+                columns[x] = x / fx;
+            }
+            rows = new int[height];
+            for (int y = 0; y < height; y++) {
+                rows[y] = (y / fy) * sourceWidth;
+            }
+        }
+
+        private int plane(int z) {
+            int plane = 0;
+            for (int d = 2; d < position.length; d++) {
+                plane += (d == zidx ? z : position[d]) * strides[d];
+            }
+            return plane;
+        }
+
+        private Object source(int z, int[] offset) {
+            int plane = plane(z);
+            if (img instanceof PlanarImg) {
+                offset[0] = 0;
+                return ((ArrayDataAccess) ((PlanarImg) img).getPlane(plane)).getCurrentStorageArray();
+            }
+            offset[0] = plane * sourceWidth * (int) img.dimension(1);
+            return ((ArrayDataAccess) ((ArrayImg) img).update(null)).getCurrentStorageArray();
+        }
+
+        void copy(int z, Object target) {
+            int[] offset = new int[1];
+            Object source = source(z, offset);
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                if ((y > 0) && (rows[y] == rows[y - 1])) {
+                    System.arraycopy(target, row - width, target, row, width);
+                } else if (fx == 1) {
+                    System.arraycopy(source, offset[0] + rows[y], target, row, width);
+                } else if (bytes) {
+                    byte[] src = (byte[]) source;
+                    byte[] dst = (byte[]) target;
+                    int start = offset[0] + rows[y];
+                    for (int x = 0; x < width; x++) {
+                        dst[row + x] = src[start + columns[x]];
+                    }
+                } else {
+                    short[] src = (short[]) source;
+                    short[] dst = (short[]) target;
+                    int start = offset[0] + rows[y];
+                    for (int x = 0; x < width; x++) {
+                        dst[row + x] = src[start + columns[x]];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5DataClass;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+
+class HDF5Session implements AutoCloseable {
+
+    private static final String ELEMENT_SIZE = "element_size_um";
+
+    private File file;
+    private IHDF5Reader reader;
+    private IHDF5Writer writer;
+
+    private HDF5Session(File file, IHDF5Reader reader, IHDF5Writer writer) {
+        this.file = file;
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    static HDF5Session read(File file) {
+        return new HDF5Session(file, HDF5Factory.openForReading(file), null);
+    }
+
+    static HDF5Session write(File file) {
+        IHDF5Writer writer = HDF5Factory.open(file);
+        return new HDF5Session(file, writer, writer);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists(String path) {
+        return reader.object().exists(path) && reader.object().isDataSet(path);
+    }
+
+    List<String> datasets() {
+        List<String> paths = new ArrayList<>();
+        list("/", paths);
+        return paths;
+    }
+
+    private void list(String group, List<String> paths) {
+        for (String path : reader.object().getGroupMemberPaths(group)) {
+            if (reader.object().isGroup(path)) {
+                list(path, paths);
+            } else if (reader.object().isDataSet(path)) {
+                paths.add(path);
+            }
+        }
+    }
+
+    HDF5DataSetInformation info(String path) {
+        return reader.object().getDataSetInformation(path);
+    }
+
+    long[] dimensions(String path) {
+        return info(path).getDimensions();
+    }
+
+    float[] elementSize(String path) {
+        return reader.object().hasAttribute(path, ELEMENT_SIZE) ? reader.float32().getArrayAttr(path, ELEMENT_SIZE) : null;
+    }
+
+    Long longAttribute(String path, String name) {
+        return reader.object().hasAttribute(path, name) ? reader.int64().getAttr(path, name) : null;
+    }
+
+    void setAttribute(String path, String name, long value) {
+        if (writer == null) {
+            throw new IllegalStateException(file + " is opened for reading");
+        }
+        writer.int64().setAttr(path, name, value);
+    }
+
+    ImagePlus read(String path) {
+        long[] dimensions = dimensions(path);
+        int[] block = new int[dimensions.length];
+        for (int d = 0; d < dimensions.length; d++) {
+            block[d] = (int) dimensions[d];
+        }
+        return read(path, new long[dimensions.length], block);
+    }
+
+    // Reads a block of a zyx (or yx) dataset, only the block is transferred from the file
+    ImagePlus read(String path, long[] offset, int[] block) {
+        int depth = block.length > 2 ? block[0] : 1;
+        int height = block[block.length - 2];
+        int width = block[block.length - 1];
+        int plane = width * height;
+
+        HDF5DataSetInformation info = info(path);
+        boolean integer = info.getTypeInformation().getDataClass() == HDF5DataClass.INTEGER;
+        int size = info.getTypeInformation().getElementSize();
+        Object data;
+        if (integer && (size == 1)) {
+            data = reader.uint8().readMDArrayBlockWithOffset(path, block, offset).getAsFlatArray();
+        } else if (integer && (size == 2)) {
+            data = reader.uint16().readMDArrayBlockWithOffset(path, block, offset).getAsFlatArray();
+        } else {
+            // Other types are converted by the library on reading
+            data = reader.float32().readMDArrayBlockWithOffset(path, block, offset).getAsFlatArray();
+        }
+
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            Object pixels;
+            if (data instanceof byte[]) {
+                pixels = new byte[plane];
+            } else if (data instanceof short[]) {
+                pixels = new short[plane];
+            } else {
+                pixels = new float[plane];
+            }
+            System.arraycopy(data, z * plane, pixels, 0, plane);
+            stack.addSlice("", pixels);
+        }
+
+        ImagePlus image = new ImagePlus(file.getName() + ":" + path, stack);
+        float[] scale = elementSize(path);
+        if (scale != null) {
+            Calibration calibration = image.getCalibration();
+            calibration.pixelDepth = scale[0];
+            calibration.pixelHeight = scale[1];
+            calibration.pixelWidth = scale[2];
+            calibration.setUnit("micron");
+        }
+        return image;
+    }
+
+    // Each channel is written to its own dataset, {c} in the path is replaced by the channel number
+    void write(ImagePlus image, String path, int compressionLevel) {
+        if (writer == null) {
+            throw new IllegalStateException(file + " is opened for reading");
+        }
+        int channels = image.getNChannels();
+        if ((channels > 1) && (! path.contains("{c}"))) {
+            throw new IllegalArgumentException("Dataset " + path + " has no channel placeholder for " + channels +
+                    " channels");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int depth = image.getNSlices();
+        int plane = width * height;
+        int[] dimensions = {depth, height, width};
+        ImageStack stack = image.getStack();
+        Calibration calibration = image.getCalibration();
+        float[] scale = {(float) calibration.pixelDepth, (float) calibration.pixelHeight, (float) calibration.pixelWidth};
+
+        for (int c = 0; c < channels; c++) {
+            String dataset = path.replace("{c}", String.valueOf(c));
+            if (writer.object().exists(dataset)) {
+                writer.object().delete(dataset);
+            }
+            Object first = stack.getPixels(image.getStackIndex(c + 1, 1, 1));
+            Object data;
+            if (first instanceof byte[]) {
+                data = new byte[plane * depth];
+            } else if (first instanceof short[]) {
+                data = new short[plane * depth];
+            } else if (first instanceof float[]) {
+                data = new float[plane * depth];
+            } else {
+                throw new IllegalArgumentException("Unsupported pixel type of " + image.getTitle());
+            }
+            for (int z = 0; z < depth; z++) {
+                System.arraycopy(stack.getPixels(image.getStackIndex(c + 1, z + 1, 1)), 0, data, z * plane, plane);
+            }
+
+            HDF5IntStorageFeatures integer = compressionLevel > 0 ?
+                    HDF5IntStorageFeatures.createDeflation(compressionLevel) : HDF5IntStorageFeatures.INT_NO_COMPRESSION;
+            if (data instanceof byte[]) {
+                writer.uint8().writeMDArray(dataset, new MDByteArray((byte[]) data, dimensions), integer);
+            } else if (data instanceof short[]) {
+                writer.uint16().writeMDArray(dataset, new MDShortArray((short[]) data, dimensions), integer);
+            } else {
+                writer.float32().writeMDArray(dataset, new MDFloatArray((float[]) data, dimensions),
+                        compressionLevel > 0 ? HDF5FloatStorageFeatures.createDeflation(compressionLevel) :
+                                HDF5FloatStorageFeatures.FLOAT_NO_COMPRESSION);
+            }
+            writer.float32().setArrayAttr(dataset, ELEMENT_SIZE, scale);
+        }
+    }
+
+    void delete(String path) {
+        if (writer == null) {
+            throw new IllegalStateException(file + " is opened for reading");
+        }
+        if (writer.object().exists(path)) {
+            writer.object().delete(path);
+        }
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+}
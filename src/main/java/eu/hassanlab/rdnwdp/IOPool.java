@@ -0,0 +1,36 @@
+package eu.hassanlab.rdnwdp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+class IOPool {
+
+    // Threads blocked on the file system do not use the cores, so there are more of them than in the compute pools
+    static final int THREADS = Math.max(1, Integer.getInteger("rdnwdp.ioThreads",
+            Math.max(16, 4 * Runtime.getRuntime().availableProcessors())));
+
+    private static final long IDLE_SECONDS = 30;
+
+    private static ExecutorService shared;
+
+    static synchronized ExecutorService shared() {
+        if (shared == null) {
+            shared = create(THREADS, "IO");
+        }
+        return shared;
+    }
+
+    // Threads are started on demand up to the limit and stopped when idle, the shared pool never has to be shut down
+    static ExecutorService create(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
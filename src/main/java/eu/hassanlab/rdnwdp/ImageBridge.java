@@ -0,0 +1,225 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import org.scijava.convert.ConvertService;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+final class ImageBridge {
+
+    private ImageBridge() {}
+
+    @SuppressWarnings("unchecked")
+    static Dataset toDataset(ImagePlus imp, DatasetService datasetService, ConvertService convertService) {
+        ImgPlus img = wrap(imp);
+        return img != null ? datasetService.create(img) : convertService.convert(imp, Dataset.class).duplicate();
+    }
+
+    static ImagePlus toImagePlus(Dataset image, ConvertService convertService) {
+        ImagePlus imp = wrap(image);
+        return imp != null ? imp : convertService.convert(image, ImagePlus.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    static ImgPlus wrap(ImagePlus imp) {
+        ImageStack stack = imp.getStack();
+        if (stack.isVirtual()) {
+            return null;
+        }
+
+        Calibration calibration = imp.getCalibration();
+        List<Long> dims = new ArrayList<>();
+        List<CalibratedAxis> axes = new ArrayList<>();
+        dims.add((long) imp.getWidth());
+        axes.add(new DefaultLinearAxis(Axes.X, calibration.getXUnit(), calibration.pixelWidth));
+        dims.add((long) imp.getHeight());
+        axes.add(new DefaultLinearAxis(Axes.Y, calibration.getYUnit(), calibration.pixelHeight));
+        if (imp.getNChannels() > 1) {
+            dims.add((long) imp.getNChannels());
+            axes.add(new DefaultLinearAxis(Axes.CHANNEL));
+        }
+        if (imp.getNSlices() > 1) {
+            dims.add((long) imp.getNSlices());
+            axes.add(new DefaultLinearAxis(Axes.Z, calibration.getZUnit(), calibration.pixelDepth));
+        }
+        if (imp.getNFrames() > 1) {
+            dims.add((long) imp.getNFrames());
+            axes.add(new DefaultLinearAxis(Axes.TIME, calibration.getTimeUnit(), calibration.frameInterval));
+        }
+        long[] dimensions = dims.stream().mapToLong(l -> l).toArray();
+
+        // ImageJ stacks are ordered by channel, slice and frame, just like planar images with XYCZT axes
+        PlanarImg img;
+        switch (imp.getType()) {
+            case ImagePlus.GRAY8:
+                List<ByteArray> bytes = new ArrayList<>();
+                for (int n = 1; n <= stack.getSize(); n++) {
+                    bytes.add(new ByteArray((byte[]) stack.getPixels(n)));
+                }
+                img = new PlanarImg<>(bytes, dimensions, new Fraction());
+                img.setLinkedType(new UnsignedByteType(img));
+                break;
+            case ImagePlus.GRAY16:
+                List<ShortArray> shorts = new ArrayList<>();
+                for (int n = 1; n <= stack.getSize(); n++) {
+                    shorts.add(new ShortArray((short[]) stack.getPixels(n)));
+                }
+                img = new PlanarImg<>(shorts, dimensions, new Fraction());
+                img.setLinkedType(new UnsignedShortType(img));
+                break;
+            case ImagePlus.GRAY32:
+                List<FloatArray> floats = new ArrayList<>();
+                for (int n = 1; n <= stack.getSize(); n++) {
+                    floats.add(new FloatArray((float[]) stack.getPixels(n)));
+                }
+                img = new PlanarImg<>(floats, dimensions, new Fraction());
+                img.setLinkedType(new FloatType(img));
+                break;
+            default:
+                return null;
+        }
+
+        return new ImgPlus(img, imp.getTitle(), axes.toArray(new CalibratedAxis[0]));
+    }
+
+    static ImagePlus wrap(Dataset image) {
+        return wrap(image, -1, false);
+    }
+
+    static ImagePlus copy(Dataset image, int channel) {
+        return wrap(image, channel, true);
+    }
+
+    private static ImagePlus wrap(Dataset image, int channel, boolean copy) {
+        Img<?> img = image.getImgPlus().getImg();
+        Object type = img.firstElement();
+        if ((! (img instanceof PlanarImg)) || (image.dimensionIndex(Axes.X) != 0) ||
+                (image.dimensionIndex(Axes.Y) != 1) || (! ((type instanceof UnsignedByteType) ||
+                (type instanceof UnsignedShortType) || (type instanceof FloatType)))) {
+            return null;
+        }
+
+        AxisType[] order = {Axes.CHANNEL, Axes.Z, Axes.TIME};
+        int[] sizes = new int[order.length];
+        int[] strides = new int[order.length];
+        int stride = 1;
+        int found = 0;
+        for (int d = 2; d < image.numDimensions(); d++) {
+            int dimension = (int) image.dimension(d);
+            for (int a = 0; a < order.length; a++) {
+                if (image.axis(d).type() == order[a]) {
+                    sizes[a] = dimension;
+                    strides[a] = stride;
+                    found++;
+                }
+            }
+            stride *= dimension;
+        }
+        if (found != image.numDimensions() - 2) {
+            return null;
+        }
+        for (int a = 0; a < order.length; a++) {
+            sizes[a] = Math.max(sizes[a], 1);
+        }
+        int firstChannel = channel >= 0 ? channel : 0;
+        int lastChannel = channel >= 0 ? channel : sizes[0] - 1;
+
+        // Reordering the planes into the channel, slice, frame order of ImageJ does not copy any pixels
+        PlanarImg<?, ?> planar = (PlanarImg<?, ?>) img;
+        ImageStack stack = new ImageStack((int) image.dimension(0), (int) image.dimension(1));
+        for (int t = 0; t < sizes[2]; t++) {
+            for (int z = 0; z < sizes[1]; z++) {
+                for (int c = firstChannel; c <= lastChannel; c++) {
+                    int plane = c * strides[0] + z * strides[1] + t * strides[2];
+                    Object pixels = ((ArrayDataAccess<?>) planar.getPlane(plane)).getCurrentStorageArray();
+                    if (copy) {
+                        pixels = copy(pixels);
+                    } else if (! pixels.getClass().isArray()) {
+                        return null;
+                    }
+                    stack.addSlice("", pixels);
+                }
+            }
+        }
+
+        ImagePlus imp = new ImagePlus(image.getName(), stack);
+        imp.setDimensions(lastChannel - firstChannel + 1, sizes[1], sizes[2]);
+        if ((lastChannel > firstChannel) || (sizes[2] > 1)) {
+            imp.setOpenAsHyperStack(true);
+        }
+
+        Calibration calibration = imp.getCalibration();
+        for (int d = 0; d < image.numDimensions(); d++) {
+            CalibratedAxis axis = image.axis(d);
+            double scale = axis.averageScale(0, 1);
+            if (axis.type() == Axes.X) {
+                calibration.pixelWidth = scale;
+                calibration.setXUnit(axis.unit());
+            } else if (axis.type() == Axes.Y) {
+                calibration.pixelHeight = scale;
+                calibration.setYUnit(axis.unit());
+            } else if (axis.type() == Axes.Z) {
+                calibration.pixelDepth = scale;
+                calibration.setZUnit(axis.unit());
+            } else if (axis.type() == Axes.TIME) {
+                calibration.frameInterval = scale;
+                calibration.setTimeUnit(axis.unit());
+            }
+        }
+
+        return imp;
+    }
+
+    private static Object copy(Object pixels) {
+        if (pixels instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) pixels).duplicate();
+            buffer.clear();
+            byte[] array = new byte[buffer.capacity()];
+            buffer.get(array);
+            return array;
+        } else if (pixels instanceof ShortBuffer) {
+            ShortBuffer buffer = ((ShortBuffer) pixels).duplicate();
+            buffer.clear();
+            short[] array = new short[buffer.capacity()];
+            buffer.get(array);
+            return array;
+        } else if (pixels instanceof FloatBuffer) {
+            FloatBuffer buffer = ((FloatBuffer) pixels).duplicate();
+            buffer.clear();
+            float[] array = new float[buffer.capacity()];
+            buffer.get(array);
+            return array;
+        } else if (pixels instanceof byte[]) {
+            return ((byte[]) pixels).clone();
+        } else if (pixels instanceof short[]) {
+            return ((short[]) pixels).clone();
+        } else if (pixels instanceof float[]) {
+            return ((float[]) pixels).clone();
+        }
+        throw new IllegalArgumentException("Unsupported pixel storage " + pixels.getClass());
+    }
+}
@@ -0,0 +1,84 @@
+package eu.hassanlab.rdnwdp;
+
+import java.util.Arrays;
+
+
+class IntIntMap {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    IntIntMap() {
+        this(64);
+    }
+
+    IntIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(int key) {
+        // Labels are often consecutive, so keys are mixed before probing
+        int h = key * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    int get(int key, int missing) {
+        for (int s = slot(key); ; s = (s + 1) & mask) {
+            if (keys[s] == key) {
+                return values[s];
+            } else if (keys[s] == FREE) {
+                return missing;
+            }
+        }
+    }
+
+    void put(int key, int value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Key " + key + " is reserved");
+        }
+        int s = slot(key);
+        while ((keys[s] != FREE) && (keys[s] != key)) {
+            s = (s + 1) & mask;
+        }
+        if (keys[s] == FREE) {
+            keys[s] = key;
+            if (++size * 2 > keys.length) {
+                values[s] = value;
+                grow();
+                return;
+            }
+        }
+        values[s] = value;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(keys, FREE);
+        mask = keys.length - 1;
+        for (int s = 0; s < oldKeys.length; s++) {
+            if (oldKeys[s] != FREE) {
+                int t = slot(oldKeys[s]);
+                while (keys[t] != FREE) {
+                    t = (t + 1) & mask;
+                }
+                keys[t] = oldKeys[s];
+                values[t] = oldValues[s];
+            }
+        }
+    }
+}
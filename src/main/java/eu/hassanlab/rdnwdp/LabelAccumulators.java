@@ -0,0 +1,822 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+
+class LabelAccumulators {
+
+    private static final int MAGIC = 0x52444e41;
+    // Voxel count, coordinate sums and sums of coordinate products of each label
+    private static final int GEOMETRY = 10;
+    private static final int BINS = 65536;
+
+    private double resXY;
+    private double resZ;
+    private int[] labels;
+    private double[][] geometry;
+    private List<String> channels;
+    private List<double[]> sums;
+    private double[] surfaces;
+    private int[] contours;
+    private int[] shellVoxels;
+    private int[] shellOwners;
+    private int[] shellSizes;
+    private int shellPasses;
+    private int measuredPasses;
+    private int[][] bounds;
+    private double[] levels;
+    private List<double[]> backgrounds;
+    private List<double[]> percentiles;
+
+    interface BlockReader {
+        ImagePlus read(String channel, long[] offset, int[] block);
+    }
+
+    private LabelAccumulators() {
+        channels = new ArrayList<>();
+        sums = new ArrayList<>();
+        backgrounds = new ArrayList<>();
+        percentiles = new ArrayList<>();
+    }
+
+    static LabelAccumulators measure(ImagePlus labelImage) {
+        ImageStack stack = labelImage.getStack();
+        int width = labelImage.getWidth();
+        int height = labelImage.getHeight();
+        int depth = stack.getSize();
+
+        // Accumulators are only kept for the labels present, whatever the range of label values
+        IntIntMap index = new IntIntMap();
+        List<double[]> found = new ArrayList<>();
+        List<int[]> boxes = new ArrayList<>();
+        int[] keys = new int[64];
+        for (int z = 0; z < depth; z++) {
+            Object pixels = stack.getPixels(z + 1);
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    int label = label(pixels, i);
+                    if (label <= 0) {
+                        continue;
+                    }
+                    int k = index.get(label, -1);
+                    if (k < 0) {
+                        k = found.size();
+                        index.put(label, k);
+                        found.add(new double[GEOMETRY]);
+                        boxes.add(new int[] {x, y, z, x, y, z});
+                        if (k == keys.length) {
+                            keys = Arrays.copyOf(keys, k * 2);
+                        }
+                        keys[k] = label;
+                    }
+                    double[] g = found.get(k);
+                    g[0]++;
+                    g[1] += x;
+                    g[2] += y;
+                    g[3] += z;
+                    g[4] += (double) x * x;
+                    g[5] += (double) y * y;
+                    g[6] += (double) z * z;
+                    g[7] += (double) x * y;
+                    g[8] += (double) x * z;
+                    g[9] += (double) y * z;
+                    // Labels are found in z order, so only the other bounds can grow
+                    int[] box = boxes.get(k);
+                    box[0] = Math.min(box[0], x);
+                    box[1] = Math.min(box[1], y);
+                    box[3] = Math.max(box[3], x);
+                    box[4] = Math.max(box[4], y);
+                    box[5] = z;
+                }
+            }
+        }
+
+        LabelAccumulators accumulators = new LabelAccumulators();
+        Calibration calibration = labelImage.getCalibration();
+        accumulators.resXY = calibration.pixelWidth;
+        accumulators.resZ = calibration.pixelDepth;
+        accumulators.labels = Arrays.copyOf(keys, found.size());
+        Arrays.sort(accumulators.labels);
+        accumulators.geometry = new double[found.size()][];
+        accumulators.bounds = new int[found.size()][];
+        for (int k = 0; k < found.size(); k++) {
+            accumulators.geometry[k] = found.get(index.get(accumulators.labels[k], -1));
+            accumulators.bounds[k] = boxes.get(index.get(accumulators.labels[k], -1));
+        }
+        return accumulators;
+    }
+
+    int size() {
+        return labels.length;
+    }
+
+    boolean hasChannel(String name) {
+        return channels.contains(name);
+    }
+
+    List<String> getChannels() {
+        return channels;
+    }
+
+    void setBackground(int passes, double low, double high) {
+        shellPasses = passes;
+        levels = new double[] {low, high};
+    }
+
+    void addChannel(String name, ImagePlus labelImage, ImagePlus image) {
+        if ((shellPasses > 0) && (shellVoxels == null)) {
+            measureShells(labelImage);
+        }
+        double[] background = shellVoxels != null ? new double[labels.length] : null;
+        Histogram histogram = shellVoxels != null ? new Histogram(image) : null;
+        double[] sum = accumulate(labelImage, image, null, background, histogram);
+        put(name, sum, background, percentiles(histogram));
+    }
+
+    // Only the blocks around the labels which are new, changed shape or were requested are read from the channels
+    // and swept; the label image is still measured in full to find the changes
+    LabelAccumulators update(ImagePlus labelImage, BlockReader reader, Set<Integer> subset) {
+        LabelAccumulators updated = measure(labelImage);
+        updated.setBackground(shellPasses, levels[0], levels[1]);
+        int n = updated.labels.length;
+        int width = labelImage.getWidth();
+        int height = labelImage.getHeight();
+        int depth = labelImage.getStackSize();
+        Object[] planes = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            planes[z] = labelImage.getStack().getPixels(z + 1);
+        }
+
+        int[] previous = new int[n];
+        boolean[] changed = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            previous[k] = Arrays.binarySearch(labels, updated.labels[k]);
+            changed[k] = (previous[k] < 0) || (! Arrays.equals(geometry[previous[k]], updated.geometry[k])) ||
+                    ((subset != null) && subset.contains(updated.labels[k]));
+        }
+
+        // Shells of the labels near an edited or removed one can change, all of them are measured again when the
+        // backgrounds were not saved with the same number of passes
+        boolean shells = shellPasses > 0;
+        boolean all = shells && ((shellSizes == null) || (measuredPasses != shellPasses) || (bounds == null) ||
+                backgrounds.contains(null));
+        boolean[] reshelled = new boolean[n];
+        int[][] shellLists = new int[n][];
+        if (shells) {
+            updated.measuredPasses = shellPasses;
+            updated.shellSizes = new int[n];
+            List<int[]> edited = new ArrayList<>();
+            for (int k = 0; k < n; k++) {
+                if (changed[k]) {
+                    edited.add(updated.bounds[k]);
+                    if ((previous[k] >= 0) && (bounds != null)) {
+                        edited.add(bounds[previous[k]]);
+                    }
+                }
+            }
+            IntIntMap index = updated.index();
+            for (int k = 0; (k < labels.length) && (bounds != null); k++) {
+                if (index.get(labels[k], -1) < 0) {
+                    edited.add(bounds[k]);
+                }
+            }
+            for (int k = 0; k < n; k++) {
+                reshelled[k] = all || changed[k];
+                for (int e = 0; (e < edited.size()) && (! reshelled[k]); e++) {
+                    reshelled[k] = near(updated.bounds[k], edited.get(e), 2 * shellPasses);
+                }
+            }
+            if (all) {
+                updated.measureShells(labelImage);
+                int[] filled = new int[n];
+                for (int k = 0; k < n; k++) {
+                    shellLists[k] = new int[updated.shellSizes[k]];
+                }
+                for (int v = 0; v < updated.shellVoxels.length; v++) {
+                    int owner = updated.shellOwners[v];
+                    shellLists[owner][filled[owner]++] = updated.shellVoxels[v];
+                }
+            } else {
+                for (int k = 0; k < n; k++) {
+                    if (reshelled[k]) {
+                        // Shells owned by the label only depend on the labels within twice the passes
+                        int[][] shell = updated.growShells(planes, width, height,
+                                expand(updated.bounds[k], 2 * shellPasses, width, height, depth), index);
+                        shellLists[k] = owned(shell, k);
+                        updated.shellSizes[k] = shellLists[k].length;
+                    } else {
+                        updated.shellSizes[k] = shellSizes[previous[k]];
+                    }
+                }
+            }
+        }
+
+        // Blocks are read label by label, unless they would cover more than the whole image
+        long blockVoxels = 0;
+        for (int k = 0; k < n; k++) {
+            if (changed[k] || reshelled[k]) {
+                int[] box = expand(updated.bounds[k], shellPasses, width, height, depth);
+                blockVoxels += (long) (box[3] - box[0]) * (box[4] - box[1]) * (box[5] - box[2]);
+            }
+        }
+        boolean whole = all || (blockVoxels >= (long) width * height * depth);
+
+        for (int c = 0; c < channels.size(); c++) {
+            String channel = channels.get(c);
+            double[] sum = new double[n];
+            double[] background = shells ? new double[n] : null;
+            for (int k = 0; k < n; k++) {
+                if (! changed[k]) {
+                    sum[k] = sums.get(c)[previous[k]];
+                }
+                if (shells && (! reshelled[k])) {
+                    background[k] = backgrounds.get(c)[previous[k]];
+                }
+            }
+            double[] percentile = percentiles.get(c);
+            if (whole) {
+                ImagePlus image = reader.read(channel, new long[3], new int[] {depth, height, width});
+                int[] origin = {0, 0, 0, width, height, depth};
+                for (int k = 0; k < n; k++) {
+                    updated.sweep(k, planes, width, height, image, origin, changed[k] ? sum : null,
+                            reshelled[k] ? background : null, shellLists[k]);
+                }
+                // Percentiles of the whole image do not depend on the labels
+                if (all) {
+                    Histogram histogram = new Histogram(image);
+                    ImageStack stack = image.getStack();
+                    for (int z = 0; z < depth; z++) {
+                        Object pixels = stack.getPixels(z + 1);
+                        for (int i = 0; i < width * height; i++) {
+                            histogram.add(value(pixels, i));
+                        }
+                    }
+                    percentile = updated.percentiles(histogram);
+                }
+                image.close();
+            } else {
+                for (int k = 0; k < n; k++) {
+                    if (changed[k] || reshelled[k]) {
+                        int[] box = expand(updated.bounds[k], shellPasses, width, height, depth);
+                        ImagePlus block = reader.read(channel, new long[] {box[2], box[1], box[0]},
+                                new int[] {box[5] - box[2], box[4] - box[1], box[3] - box[0]});
+                        updated.sweep(k, planes, width, height, block, box, changed[k] ? sum : null,
+                                reshelled[k] ? background : null, shellLists[k]);
+                        block.close();
+                    }
+                }
+            }
+            updated.put(channel, sum, background, percentile);
+        }
+        return updated;
+    }
+
+    // Adds the voxels of label k and its shell, from a block of the channel starting at the origin
+    private void sweep(int k, Object[] planes, int width, int height, ImagePlus block, int[] origin,
+                       double[] sum, double[] background, int[] shell) {
+        ImageStack stack = block.getStack();
+        int blockWidth = origin[3] - origin[0];
+        int[] box = bounds[k];
+        if (sum != null) {
+            for (int z = box[2]; z <= box[5]; z++) {
+                Object pixels = stack.getPixels(z - origin[2] + 1);
+                for (int y = box[1]; y <= box[4]; y++) {
+                    for (int x = box[0]; x <= box[3]; x++) {
+                        if (label(planes[z], y * width + x) == labels[k]) {
+                            sum[k] += value(pixels, (y - origin[1]) * blockWidth + x - origin[0]);
+                        }
+                    }
+                }
+            }
+        }
+        if (background != null) {
+            int plane = width * height;
+            for (int i : shell) {
+                int z = i / plane;
+                int y = (i % plane) / width;
+                int x = i % width;
+                background[k] += value(stack.getPixels(z - origin[2] + 1), (y - origin[1]) * blockWidth + x - origin[0]);
+            }
+        }
+    }
+
+    // Bounds are inclusive, the expanded box is exclusive at the end
+    private static int[] expand(int[] box, int margin, int width, int height, int depth) {
+        return new int[] {
+                Math.max(0, box[0] - margin), Math.max(0, box[1] - margin), Math.max(0, box[2] - margin),
+                Math.min(width, box[3] + margin + 1), Math.min(height, box[4] + margin + 1),
+                Math.min(depth, box[5] + margin + 1)
+        };
+    }
+
+    private static boolean near(int[] a, int[] b, int margin) {
+        for (int d = 0; d < 3; d++) {
+            if ((a[d] > b[d + 3] + margin) || (b[d] > a[d + 3] + margin)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] owned(int[][] shell, int k) {
+        int count = 0;
+        for (int owner : shell[1]) {
+            if (owner == k) {
+                count++;
+            }
+        }
+        int[] voxels = new int[count];
+        for (int v = 0, i = 0; v < shell[0].length; v++) {
+            if (shell[1][v] == k) {
+                voxels[i++] = shell[0][v];
+            }
+        }
+        return voxels;
+    }
+
+    private void put(String name, double[] sum, double[] background, double[] percentile) {
+        int c = channels.indexOf(name);
+        if (c >= 0) {
+            sums.set(c, sum);
+            backgrounds.set(c, background);
+            percentiles.set(c, percentile);
+        } else {
+            channels.add(name);
+            sums.add(sum);
+            backgrounds.add(background);
+            percentiles.add(percentile);
+        }
+    }
+
+    private void measureShells(ImagePlus labelImage) {
+        ImageStack stack = labelImage.getStack();
+        int width = labelImage.getWidth();
+        int height = labelImage.getHeight();
+        int depth = stack.getSize();
+        Object[] planes = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            planes[z] = stack.getPixels(z + 1);
+        }
+        int[][] shell = growShells(planes, width, height, new int[] {0, 0, 0, width, height, depth}, index());
+        shellVoxels = shell[0];
+        shellOwners = shell[1];
+        shellSizes = new int[labels.length];
+        for (int owner : shellOwners) {
+            shellSizes[owner]++;
+        }
+        measuredPasses = shellPasses;
+    }
+
+    // Only the shell voxels within the region are stored, each owned by the first object reaching it; the growth
+    // starts from the object voxels touching the background
+    private int[][] growShells(Object[] planes, int width, int height, int[] region, IntIntMap index) {
+        int plane = width * height;
+        IntIntMap owners = new IntIntMap(1024);
+        int[] voxels = new int[1024];
+        int[] voxelOwners = new int[1024];
+        int count = 0;
+        int[] frontier = new int[1024];
+        int[] frontierOwners = new int[1024];
+        int size = 0;
+        for (int z = region[2]; z < region[5]; z++) {
+            for (int y = region[1]; y < region[4]; y++) {
+                for (int x = region[0]; x < region[3]; x++) {
+                    int p = y * width + x;
+                    int label = label(planes[z], p);
+                    int k = label > 0 ? index.get(label, -1) : -1;
+                    if ((k < 0) || (! boundary(planes, p, x, y, z, width, height))) {
+                        continue;
+                    }
+                    if (size == frontier.length) {
+                        frontier = Arrays.copyOf(frontier, size * 2);
+                        frontierOwners = Arrays.copyOf(frontierOwners, size * 2);
+                    }
+                    frontier[size] = z * plane + p;
+                    frontierOwners[size++] = k;
+                }
+            }
+        }
+
+        for (int pass = 0; pass < shellPasses; pass++) {
+            int[] next = new int[Math.max(1024, size)];
+            int[] nextOwners = new int[next.length];
+            int nextSize = 0;
+            for (int f = 0; f < size; f++) {
+                int i = frontier[f];
+                int owner = frontierOwners[f];
+                for (int j : neighbours(i, width, height, region)) {
+                    if ((j < 0) || (label(planes[j / plane], j % plane) > 0) || (owners.get(j, -1) >= 0)) {
+                        continue;
+                    }
+                    owners.put(j, owner);
+                    if (count == voxels.length) {
+                        voxels = Arrays.copyOf(voxels, count * 2);
+                        voxelOwners = Arrays.copyOf(voxelOwners, count * 2);
+                    }
+                    voxels[count] = j;
+                    voxelOwners[count++] = owner;
+                    if (nextSize == next.length) {
+                        next = Arrays.copyOf(next, nextSize * 2);
+                        nextOwners = Arrays.copyOf(nextOwners, nextSize * 2);
+                    }
+                    next[nextSize] = j;
+                    nextOwners[nextSize++] = owner;
+                }
+            }
+            frontier = next;
+            frontierOwners = nextOwners;
+            size = nextSize;
+        }
+        return new int[][] {Arrays.copyOf(voxels, count), Arrays.copyOf(voxelOwners, count)};
+    }
+
+    private static int[] neighbours(int i, int width, int height, int[] region) {
+        int plane = width * height;
+        int p = i % plane;
+        int x = p % width;
+        int y = p / width;
+        int z = i / plane;
+        return new int[] {
+                x > region[0] ? i - 1 : -1, x < region[3] - 1 ? i + 1 : -1,
+                y > region[1] ? i - width : -1, y < region[4] - 1 ? i + width : -1,
+                z > region[2] ? i - plane : -1, z < region[5] - 1 ? i + plane : -1
+        };
+    }
+
+    private static boolean boundary(Object[] planes, int p, int x, int y, int z, int width, int height) {
+        Object pixels = planes[z];
+        return ((x > 0) && (label(pixels, p - 1) <= 0)) || ((x < width - 1) && (label(pixels, p + 1) <= 0)) ||
+                ((y > 0) && (label(pixels, p - width) <= 0)) || ((y < height - 1) && (label(pixels, p + width) <= 0)) ||
+                ((z > 0) && (label(planes[z - 1], p) <= 0)) || ((z < planes.length - 1) && (label(planes[z + 1], p) <= 0));
+    }
+
+    private double[] percentiles(Histogram histogram) {
+        if (histogram == null) {
+            return null;
+        }
+        long[] counts = histogram.counts;
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        double[] result = new double[levels.length];
+        for (int l = 0; l < levels.length; l++) {
+            long target = (long) Math.ceil(levels[l] / 100.0 * total);
+            long cumulative = 0;
+            int bin = 0;
+            while ((bin < BINS - 1) && (cumulative + counts[bin] < Math.max(1, target))) {
+                cumulative += counts[bin++];
+            }
+            result[l] = histogram.value(bin);
+        }
+        return result;
+    }
+
+    private IntIntMap index() {
+        IntIntMap index = new IntIntMap(labels.length);
+        for (int k = 0; k < labels.length; k++) {
+            index.put(labels[k], k);
+        }
+        return index;
+    }
+
+    void measureSurfaces(ImagePlus labelImage) {
+        IntIntMap index = index();
+        ImageStack stack = labelImage.getStack();
+        int width = labelImage.getWidth();
+        int height = labelImage.getHeight();
+        int depth = stack.getSize();
+        Object[] planes = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            planes[z] = stack.getPixels(z + 1);
+        }
+        // Areas of the voxel faces normal to x, y and z
+        double[] faces = {resXY * resZ, resXY * resZ, resXY * resXY};
+
+        // Every voxel face between different labels is counted once per side, in a single sweep over the slabs
+        int slabs = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+        double[][] slabSurfaces = new double[slabs][labels.length];
+        int[][] slabContours = new int[slabs][labels.length];
+        IntStream.range(0, slabs).parallel().forEach(slab -> {
+            double[] surface = slabSurfaces[slab];
+            int[] contour = slabContours[slab];
+            for (int z = slab * depth / slabs; z < (slab + 1) * depth / slabs; z++) {
+                for (int y = 0, i = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++, i++) {
+                        int label = label(planes[z], i);
+                        if (label <= 0) {
+                            continue;
+                        }
+                        int k = index.get(label, -1);
+                        if (k < 0) {
+                            continue;
+                        }
+                        int exposed = 0;
+                        double area = 0;
+                        if ((x == 0) || (label(planes[z], i - 1) != label)) {
+                            exposed++;
+                            area += faces[0];
+                        }
+                        if ((x == width - 1) || (label(planes[z], i + 1) != label)) {
+                            exposed++;
+                            area += faces[0];
+                        }
+                        if ((y == 0) || (label(planes[z], i - width) != label)) {
+                            exposed++;
+                            area += faces[1];
+                        }
+                        if ((y == height - 1) || (label(planes[z], i + width) != label)) {
+                            exposed++;
+                            area += faces[1];
+                        }
+                        if ((z == 0) || (label(planes[z - 1], i) != label)) {
+                            exposed++;
+                            area += faces[2];
+                        }
+                        if ((z == depth - 1) || (label(planes[z + 1], i) != label)) {
+                            exposed++;
+                            area += faces[2];
+                        }
+                        if (exposed > 0) {
+                            surface[k] += area;
+                            contour[k]++;
+                        }
+                    }
+                }
+            }
+        });
+
+        surfaces = new double[labels.length];
+        contours = new int[labels.length];
+        for (int slab = 0; slab < slabs; slab++) {
+            for (int k = 0; k < labels.length; k++) {
+                surfaces[k] += slabSurfaces[slab][k];
+                contours[k] += slabContours[slab][k];
+            }
+        }
+    }
+
+    private double[] accumulate(ImagePlus labelImage, ImagePlus image, boolean[] selected, double[] background,
+                                Histogram histogram) {
+        IntIntMap index = index();
+        double[] sum = new double[labels.length];
+        ImageStack labelStack = labelImage.getStack();
+        ImageStack stack = image.getStack();
+        int size = labelImage.getWidth() * labelImage.getHeight();
+        // Object sums and the histogram of the whole image are collected in the same sweep
+        for (int z = 0; z < labelStack.getSize(); z++) {
+            Object labelPixels = labelStack.getPixels(z + 1);
+            Object pixels = stack.getPixels(z + 1);
+            for (int i = 0; i < size; i++) {
+                if (histogram != null) {
+                    histogram.add(value(pixels, i));
+                }
+                int label = label(labelPixels, i);
+                if (label <= 0) {
+                    continue;
+                }
+                int k = index.get(label, -1);
+                if ((k >= 0) && ((selected == null) || selected[k])) {
+                    sum[k] += value(pixels, i);
+                }
+            }
+        }
+        if (background != null) {
+            for (int v = 0; v < shellVoxels.length; v++) {
+                background[shellOwners[v]] += value(stack.getPixels(shellVoxels[v] / size + 1), shellVoxels[v] % size);
+            }
+        }
+        return sum;
+    }
+
+    ResultsTable table() {
+        ResultsTable results = new ResultsTable();
+        results.showRowNumbers(false);
+        double[] res = {resXY, resXY, resZ};
+        for (int k = 0; k < labels.length; k++) {
+            double[] g = geometry[k];
+            double n = g[0];
+            double[] c = {g[1] / n, g[2] / n, g[3] / n};
+            results.incrementCounter();
+            results.addValue("Particle", k + 1);
+            results.addValue("Label", labels[k]);
+            results.addValue("cx", c[0]);
+            results.addValue("cy", c[1]);
+            results.addValue("cz", c[2]);
+            results.addValue("Volume", n);
+            // Central second moments of the voxel coordinates, in calibrated units
+            int[][] axes = {{0, 0}, {1, 1}, {2, 2}, {0, 1}, {0, 2}, {1, 2}};
+            for (int m = 0; m < axes.length; m++) {
+                int a = axes[m][0];
+                int b = axes[m][1];
+                results.addValue(Quantification.MOMENTS[m], (g[4 + m] / n - c[a] * c[b]) * res[a] * res[b]);
+            }
+            if (surfaces != null) {
+                // Sphericity compares the surface with the one of a sphere of the same volume
+                double volume = n * resXY * resXY * resZ;
+                results.addValue("Surface", surfaces[k]);
+                results.addValue("Sphericity", Math.cbrt(Math.PI) * Math.pow(6 * volume, 2.0 / 3.0) / surfaces[k]);
+                results.addValue("Contour", contours[k]);
+            }
+            for (int channel = 0; channel < sums.size(); channel++) {
+                double sum = sums.get(channel)[k];
+                results.addValue("Integral " + channel, sum);
+                results.addValue("Mean " + channel, sum / n);
+                if (shellSizes != null) {
+                    double[] background = backgrounds.get(channel);
+                    double[] percentile = percentiles.get(channel);
+                    double shellMean = (background != null) && (shellSizes[k] > 0) ?
+                            background[k] / shellSizes[k] : Double.NaN;
+                    results.addValue("Background " + channel, shellMean);
+                    results.addValue("Corrected " + channel, sum / n - shellMean);
+                    results.addValue("Normalized " + channel, (percentile != null) && (percentile[1] > percentile[0]) ?
+                            (sum / n - percentile[0]) / (percentile[1] - percentile[0]) : Double.NaN);
+                }
+            }
+        }
+        return results;
+    }
+
+    static int label(Object pixels, int i) {
+        if (pixels instanceof short[]) {
+            return ((short[]) pixels)[i] & 0xffff;
+        } else if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[i] & 0xff;
+        } else if (pixels instanceof float[]) {
+            return (int) ((float[]) pixels)[i];
+        }
+        return ((int[]) pixels)[i];
+    }
+
+    private static double value(Object pixels, int i) {
+        if (pixels instanceof short[]) {
+            return ((short[]) pixels)[i] & 0xffff;
+        } else if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[i] & 0xff;
+        } else if (pixels instanceof float[]) {
+            return ((float[]) pixels)[i];
+        }
+        return ((int[]) pixels)[i];
+    }
+
+    // Integer channels are binned by value, float channels over the range of their values
+    private static class Histogram {
+
+        private double min;
+        private double width;
+        private long[] counts;
+
+        Histogram(ImagePlus image) {
+            ImageStack stack = image.getStack();
+            counts = new long[BINS];
+            width = 1;
+            if (! (stack.getPixels(1) instanceof float[])) {
+                return;
+            }
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (int z = 0; z < stack.getSize(); z++) {
+                for (float value : (float[]) stack.getPixels(z + 1)) {
+                    if (! Float.isNaN(value)) {
+                        low = Math.min(low, value);
+                        high = Math.max(high, value);
+                    }
+                }
+            }
+            if (low <= high) {
+                min = low;
+                width = high > low ? (high - low) / (BINS - 1) : 1;
+            }
+        }
+
+        void add(double value) {
+            if (! Double.isNaN(value)) {
+                counts[(int) Math.max(0, Math.min(BINS - 1, Math.round((value - min) / width)))]++;
+            }
+        }
+
+        double value(int bin) {
+            return min + bin * width;
+        }
+    }
+
+    void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeDouble(resXY);
+            out.writeDouble(resZ);
+            out.writeInt(labels.length);
+            out.writeInt(channels.size());
+            for (String channel : channels) {
+                out.writeUTF(channel);
+            }
+            for (int k = 0; k < labels.length; k++) {
+                out.writeInt(labels[k]);
+                for (double value : geometry[k]) {
+                    out.writeDouble(value);
+                }
+                for (double[] sum : sums) {
+                    out.writeDouble(sum[k]);
+                }
+            }
+            // Backgrounds are optional, missing values are stored as NaN
+            out.writeBoolean(shellSizes != null);
+            if (shellSizes != null) {
+                for (int k = 0; k < labels.length; k++) {
+                    out.writeInt(shellSizes[k]);
+                }
+                for (int c = 0; c < channels.size(); c++) {
+                    for (int k = 0; k < labels.length; k++) {
+                        out.writeDouble(backgrounds.get(c) != null ? backgrounds.get(c)[k] : Double.NaN);
+                    }
+                    for (int l = 0; l < 2; l++) {
+                        out.writeDouble(percentiles.get(c) != null ? percentiles.get(c)[l] : Double.NaN);
+                    }
+                }
+            }
+            // Bounds of the labels locate the blocks to read in updates, older files end before them
+            if (bounds != null) {
+                out.writeInt(measuredPasses);
+                for (int[] box : bounds) {
+                    for (int value : box) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+        }
+    }
+
+    static LabelAccumulators load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a label accumulator file " + file);
+            }
+            LabelAccumulators accumulators = new LabelAccumulators();
+            accumulators.resXY = in.readDouble();
+            accumulators.resZ = in.readDouble();
+            int count = in.readInt();
+            int channels = in.readInt();
+            for (int c = 0; c < channels; c++) {
+                accumulators.channels.add(in.readUTF());
+                accumulators.sums.add(new double[count]);
+            }
+            accumulators.labels = new int[count];
+            accumulators.geometry = new double[count][GEOMETRY];
+            for (int k = 0; k < count; k++) {
+                accumulators.labels[k] = in.readInt();
+                for (int g = 0; g < GEOMETRY; g++) {
+                    accumulators.geometry[k][g] = in.readDouble();
+                }
+                for (int c = 0; c < channels; c++) {
+                    accumulators.sums.get(c)[k] = in.readDouble();
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                accumulators.backgrounds.add(null);
+                accumulators.percentiles.add(null);
+            }
+            if (in.readBoolean()) {
+                accumulators.shellSizes = new int[count];
+                for (int k = 0; k < count; k++) {
+                    accumulators.shellSizes[k] = in.readInt();
+                }
+                for (int c = 0; c < channels; c++) {
+                    double[] background = new double[count];
+                    for (int k = 0; k < count; k++) {
+                        background[k] = in.readDouble();
+                    }
+                    double[] percentile = {in.readDouble(), in.readDouble()};
+                    accumulators.backgrounds.set(c, Double.isNaN(percentile[0]) ? null : background);
+                    accumulators.percentiles.set(c, Double.isNaN(percentile[0]) ? null : percentile);
+                }
+            }
+            if (in.available() > 0) {
+                accumulators.measuredPasses = in.readInt();
+                accumulators.bounds = new int[count][6];
+                for (int k = 0; k < count; k++) {
+                    for (int b = 0; b < 6; b++) {
+                        accumulators.bounds[k][b] = in.readInt();
+                    }
+                }
+            }
+            return accumulators;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package eu.hassanlab.rdnwdp;
+
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+class OffHeapStorage implements Closeable {
+
+    static final String HEAP = "Heap";
+    static final String DIRECT = "Off-heap";
+    static final String MAPPED = "Memory-mapped";
+
+    private static final long SEGMENT = 1L << 30;
+
+    private File directory;
+    private boolean mapped;
+    private List<File> files;
+    private List<ByteBuffer> segments;
+
+    private OffHeapStorage(File directory, boolean mapped) {
+        this.directory = directory;
+        this.mapped = mapped;
+        files = new ArrayList<>();
+        segments = new ArrayList<>();
+    }
+
+    static OffHeapStorage create(String type, File directory) {
+        File scratch = directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+        if (DIRECT.equals(type)) {
+            return new OffHeapStorage(scratch, false);
+        } else if (MAPPED.equals(type)) {
+            return new OffHeapStorage(scratch, true);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    PlanarImg<UnsignedByteType, ByteBufferArray> unsignedBytes(long... dims) {
+        List<ByteBufferArray> planes = new ArrayList<>();
+        for (ByteBuffer plane : allocate(dims, 1)) {
+            planes.add(new ByteBufferArray(plane));
+        }
+        PlanarImg img = new PlanarImg<>(planes, dims, new Fraction());
+        img.setLinkedType(new UnsignedByteType(img));
+        return img;
+    }
+
+    @SuppressWarnings("unchecked")
+    PlanarImg<UnsignedShortType, ShortBufferArray> unsignedShorts(long... dims) {
+        List<ShortBufferArray> planes = new ArrayList<>();
+        for (ByteBuffer plane : allocate(dims, 2)) {
+            planes.add(new ShortBufferArray(plane.asShortBuffer()));
+        }
+        PlanarImg img = new PlanarImg<>(planes, dims, new Fraction());
+        img.setLinkedType(new UnsignedShortType(img));
+        return img;
+    }
+
+    @SuppressWarnings("unchecked")
+    PlanarImg<FloatType, FloatBufferArray> floats(long... dims) {
+        List<FloatBufferArray> planes = new ArrayList<>();
+        for (ByteBuffer plane : allocate(dims, 4)) {
+            planes.add(new FloatBufferArray(plane.asFloatBuffer()));
+        }
+        PlanarImg img = new PlanarImg<>(planes, dims, new Fraction());
+        img.setLinkedType(new FloatType(img));
+        return img;
+    }
+
+    private List<ByteBuffer> allocate(long[] dims, int bytesPerPixel) {
+        int planeSize = (int) (dims[0] * (dims.length > 1 ? dims[1] : 1) * bytesPerPixel);
+        long planes = 1;
+        for (int d = 2; d < dims.length; d++) {
+            planes *= dims[d];
+        }
+
+        // Buffers are limited to 2 GB, so planes are cut from segments of at most 1 GB
+        int planesPerSegment = (int) Math.max(1, SEGMENT / planeSize);
+        List<ByteBuffer> result = new ArrayList<>();
+        try {
+            RandomAccessFile file = null;
+            try {
+                for (long first = 0; first < planes; first += planesPerSegment) {
+                    int count = (int) Math.min(planesPerSegment, planes - first);
+                    ByteBuffer segment = null;
+                    if (! mapped) {
+                        try {
+                            segment = ByteBuffer.allocateDirect(count * planeSize);
+                        } catch (OutOfMemoryError e) {
+                            // Direct memory is limited by -XX:MaxDirectMemorySize, the rest is mapped to scratch files
+                            mapped = true;
+                        }
+                    }
+                    if (segment == null) {
+                        if (file == null) {
+                            file = scratch();
+                        }
+                        segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, first * planeSize,
+                                (long) count * planeSize);
+                    }
+                    segments.add(segment);
+                    segment.order(ByteOrder.nativeOrder());
+                    for (int p = 0; p < count; p++) {
+                        segment.limit((p + 1) * planeSize).position(p * planeSize);
+                        result.add(segment.slice().order(ByteOrder.nativeOrder()));
+                    }
+                }
+            } finally {
+                if (file != null) {
+                    // The mappings stay valid after the file is closed
+                    file.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to allocate off-heap storage", e);
+        }
+        return result;
+    }
+
+    private RandomAccessFile scratch() throws IOException {
+        File scratch = File.createTempFile("rdnwdp-", ".raw", directory);
+        scratch.deleteOnExit();
+        files.add(scratch);
+        return new RandomAccessFile(scratch, "rw");
+    }
+
+    // The images must not be used after the storage is closed, their memory is released without waiting for the
+    // garbage collector, which does not see how much of it the buffers hold
+    @Override
+    public void close() {
+        segments.forEach(OffHeapStorage::free);
+        segments.clear();
+        for (File file : files) {
+            if (! file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        files.clear();
+    }
+
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                // Java 9 and later
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector
+        }
+    }
+
+    static class ByteBufferArray implements ByteAccess, ArrayDataAccess<ByteBufferArray> {
+        private ByteBuffer buffer;
+
+        ByteBufferArray(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public byte getValue(int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        public void setValue(int index, byte value) {
+            buffer.put(index, value);
+        }
+
+        @Override
+        public ByteBufferArray createArray(int numEntities) {
+            return new ByteBufferArray(ByteBuffer.allocateDirect(numEntities).order(ByteOrder.nativeOrder()));
+        }
+
+        @Override
+        public Object getCurrentStorageArray() {
+            return buffer;
+        }
+
+        public int getArrayLength() {
+            return buffer.capacity();
+        }
+    }
+
+    static class ShortBufferArray implements ShortAccess, ArrayDataAccess<ShortBufferArray> {
+        private ShortBuffer buffer;
+
+        ShortBufferArray(ShortBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public short getValue(int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        public void setValue(int index, short value) {
+            buffer.put(index, value);
+        }
+
+        @Override
+        public ShortBufferArray createArray(int numEntities) {
+            return new ShortBufferArray(ByteBuffer.allocateDirect(numEntities * 2).order(ByteOrder.nativeOrder())
+                    .asShortBuffer());
+        }
+
+        @Override
+        public Object getCurrentStorageArray() {
+            return buffer;
+        }
+
+        public int getArrayLength() {
+            return buffer.capacity();
+        }
+    }
+
+    static class FloatBufferArray implements FloatAccess, ArrayDataAccess<FloatBufferArray> {
+        private FloatBuffer buffer;
+
+        FloatBufferArray(FloatBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public float getValue(int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        public void setValue(int index, float value) {
+            buffer.put(index, value);
+        }
+
+        @Override
+        public FloatBufferArray createArray(int numEntities) {
+            return new FloatBufferArray(ByteBuffer.allocateDirect(numEntities * 4).order(ByteOrder.nativeOrder())
+                    .asFloatBuffer());
+        }
+
+        @Override
+        public Object getCurrentStorageArray() {
+            return buffer;
+        }
+
+        public int getArrayLength() {
+            return buffer.capacity();
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.plugin.ChannelSplitter;
+import net.imagej.Dataset;
+import net.imagej.ImageJ;
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.convert.ConvertService;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.module.ModuleException;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+
+@Plugin(type = Command.class, menuPath = "Plugins>RDN-WDP>Pipeline")
+public class Pipeline implements Command {
+
+    @Parameter
+    private Context context;
+
+    @Parameter
+    private CommandService commandService;
+
+    @Parameter
+    private ConvertService convertService;
+
+    @Parameter
+    private LogService logService;
+
+    @Parameter(label = "Input folder", style = "directory")
+    private File inputFolder;
+
+    @Parameter(label = "Output folder", style = "directory", required = false, persist = false)
+    private File outputFolder;
+
+    @Parameter(label = "Data format", style = "listBox", choices = {"HDF5", "Olympus OIF"})
+    private String dataFormat = "Olympus OIF";
+
+    @Parameter(label = "HDF5 datasets")
+    private String datasetNameString = "/raw/dapi/channel0, /raw/venus/channel0, /raw/mcherry/channel0";
+
+    @Parameter(label = "Alignment offsets")
+    private String offsetString = "0, 0, 0";
+
+    @Parameter(label = "Classifier (empty = use saved probability maps)", required = false)
+    private File classifierFile;
+
+    @Parameter(label = "Channel to classify")
+    private int classificationChannel = 0;
+
+    @Parameter(label = "Probability map to segment")
+    private int pmapChannel = 1;
+
+    @Parameter(label = "DoG sigma")
+    private int sigma = 8;
+
+    @Parameter(label = "DoG ratio")
+    private float div = 1.5f;
+
+    @Parameter(label = "Local maxima radius")
+    private int radius = 3;
+
+    @Parameter(label = "Probability threshold")
+    private float thresh = 0.2f;
+
+    @Parameter(label = "Maxima cutoff")
+    private float cutoff = 0.0f;
+
+    @Parameter(label = "Quantification channels")
+    private String quantChannelString = "0, 2, 1";
+
+    @Parameter(label = "Relabel objects", choices = {Quantification.RELABEL_NONE, Quantification.RELABEL_COMPACT,
+            Quantification.RELABEL_CONNECTED})
+    private String relabelMode = Quantification.RELABEL_NONE;
+
+    @Parameter(label = "Minimum object volume (voxels)")
+    private int minVolume = 0;
+
+    @Parameter(label = "Maximum object volume (voxels, 0 = no limit)")
+    private int maxVolume = 0;
+
+    @Parameter(label = "Maximum object extent (calibrated units, 0 = no limit)")
+    private double maxExtent = 0;
+
+    @Parameter(label = "Surface features")
+    private boolean surfaces = false;
+
+    @Parameter(label = "Background shell (dilation passes, 0 = off)")
+    private int backgroundShell = 0;
+
+    @Parameter(label = "Normalization percentiles")
+    private String percentileString = "1, 99";
+
+    @Parameter(label = "Neighbourhood features")
+    private boolean neighbours = false;
+
+    @Parameter(label = "Neighbourhood radius (calibrated units)")
+    private double neighbourRadius = 10.0;
+
+    @Parameter(label = "Checkpoints")
+    private String checkpointString = "metadata, raw, aligned, projections, objects, csv, plot";
+
+    @Parameter(label = "In-memory budget (MB)", required = false)
+    private Integer memoryBudget;
+
+    @Parameter(label = "Number of threads", required = false)
+    private Integer threads;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    private RunReport report;
+    private Set<String> checkpoints;
+    private int[] quantChannels;
+    private long budget;
+    private AtomicLong used;
+    private AsyncWriter writer;
+
+    private PreProcessing preProcessing;
+    private Classification classification;
+    private Segmentation segmentation;
+    private Quantification quantification;
+    private Plotting plotting;
+
+    @Override
+    public void run() {
+        if (threads == null) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+        }
+        if (memoryBudget == null) {
+            memoryBudget = (int) (Runtime.getRuntime().maxMemory() * 0.5 / (1024 * 1024));
+        }
+        report = new RunReport("Pipeline");
+        budget = memoryBudget * 1024L * 1024L;
+        used = new AtomicLong();
+        checkpoints = new HashSet<>(Arrays.asList(checkpointString.replaceAll("\\s","").split(",")));
+        quantChannels = Arrays.stream(quantChannelString.replaceAll("\\s","").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+
+        try {
+            createStages();
+        } catch (ModuleException e) {
+            logService.log(LogLevel.ERROR, "Failed to create pipeline stages", e);
+            return;
+        }
+        if ((classification != null) && (! classification.loadClassifier())) {
+            return;
+        }
+        if (! quantification.configure()) {
+            return;
+        }
+
+        writer = new AsyncWriter(logService);
+        preProcessing.setWriter(writer);
+        List<PreProcessing.FileNameSet> samples = preProcessing.findSamples();
+        double[] offsets = preProcessing.getOffsets();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorService tilePool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try {
+            for (PreProcessing.FileNameSet sample : samples) {
+                inFlight.acquire();
+                CompletableFuture<Void> done = new SampleRun(sample, offsets, pool, tilePool, IOPool.shared()).submit();
+                futures.add(done.whenComplete((v, e) -> {
+                    inFlight.release();
+                    if (e != null) {
+                        logService.log(LogLevel.WARN, "Pipeline failed for " + sample.hdf5, e);
+                    } else {
+                        logService.log(LogLevel.INFO, "Pipeline done for " + sample.hdf5);
+                    }
+                }));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    // Already reported by the completion handler
+                }
+            }
+        } catch (InterruptedException e) {
+            logService.log(LogLevel.WARN, "Pipeline interrupted!");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+            tilePool.shutdown();
+            writer.close();
+        }
+        report.save(reportFile, logService);
+    }
+
+    private void createStages() throws ModuleException {
+        preProcessing = createStage(PreProcessing.class,
+                "inputFolder", inputFolder, "outputFolder", outputFolder, "dataFormat", dataFormat,
+                "datasetNameString", datasetNameString, "offsetString", offsetString);
+        if (classifierFile != null) {
+            classification = createStage(Classification.class,
+                    "classifierFile", classifierFile, "threads", threads);
+        }
+        segmentation = createStage(Segmentation.class,
+                "sigma", sigma, "div", div, "radius", radius, "thresh", thresh, "cutoff", cutoff,
+                "threads", threads);
+        quantification = createStage(Quantification.class, "threads", threads, "relabelMode", relabelMode,
+                "minVolume", minVolume, "maxVolume", maxVolume, "maxExtent", maxExtent, "surfaces", surfaces,
+                "backgroundShell", backgroundShell, "percentileString", percentileString, "neighbours", neighbours,
+                "neighbourRadius", neighbourRadius);
+        plotting = createStage(Plotting.class, "threads", threads);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <C extends Command> C createStage(Class<C> type, Object... inputs) throws ModuleException {
+        CommandModule module = (CommandModule) commandService.getCommand(type).createModule();
+        context.inject(module.getCommand());
+        for (int i = 0; i < inputs.length; i += 2) {
+            module.setInput((String) inputs[i], inputs[i + 1]);
+        }
+        return (C) module.getCommand();
+    }
+
+    private boolean reserve(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > budget) {
+                return false;
+            }
+        } while (! used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    class Intermediate {
+
+        private ImagePlus image;
+        private File file;
+        private String dataset;
+        private long bytes;
+        private CompletableFuture<Void> saved;
+
+        Intermediate(ImagePlus image, File file, String dataset, boolean checkpoint) {
+            this.image = image;
+            this.file = file;
+            this.dataset = dataset;
+            bytes = (long) image.getWidth() * image.getHeight() * image.getStackSize() * image.getBytesPerPixel();
+            saved = CompletableFuture.completedFuture(null);
+
+            boolean fits = reserve(bytes);
+            if (checkpoint || (! fits)) {
+                save();
+            }
+            if (! fits) {
+                logService.log(LogLevel.INFO, "Intermediate " + dataset + " does not fit in memory, reading from "
+                        + file.getPath());
+                saved.whenComplete((v, e) -> image.close());
+                this.image = null;
+                bytes = 0;
+            }
+        }
+
+        // The image stays in memory while it is written, so it is only closed once the write is done
+        private void save() {
+            logService.log(LogLevel.INFO, "Saving " + dataset + " to " + file.getPath());
+            ImagePlus written = image;
+            saved = writer.hdf5(file, bytes, session -> session.write(written, dataset, 0));
+        }
+
+        synchronized ImagePlus get() {
+            if (image != null) {
+                return image;
+            }
+            saved.join();
+            return writer.read(file, session -> session.read(dataset)).join();
+        }
+
+        synchronized ImagePlus channel(int c) {
+            if (image != null) {
+                ImagePlus channel = new ImagePlus(dataset + " C" + c, ChannelSplitter.getChannel(image, c + 1));
+                channel.copyScale(image);
+                return channel;
+            }
+            saved.join();
+            return writer.read(file, session -> session.read(dataset.replace("{c}", String.valueOf(c)))).join();
+        }
+
+        synchronized void release() {
+            if (image != null) {
+                ImagePlus released = image;
+                long reserved = bytes;
+                saved.whenComplete((v, e) -> {
+                    released.close();
+                    used.addAndGet(-reserved);
+                });
+                image = null;
+            }
+        }
+    }
+
+    class SampleRun {
+
+        private PreProcessing.FileNameSet sample;
+        private double[] offsets;
+        private ExecutorService pool;
+        private ExecutorService tilePool;
+        private ExecutorService io;
+
+        SampleRun(PreProcessing.FileNameSet sample, double[] offsets, ExecutorService pool, ExecutorService tilePool,
+                  ExecutorService io) {
+            this.sample = sample;
+            this.offsets = offsets;
+            this.pool = pool;
+            this.tilePool = tilePool;
+            this.io = io;
+        }
+
+        CompletableFuture<Void> submit() {
+            // All the datasets of the sample are written to one copy of the file, which replaces it at the end
+            writer.begin(sample.hdf5);
+            // Reading the sources and the metadata waits on the file system, the samples in flight are already limited
+            CompletableFuture<PreProcessing.ImagePreprocessor> sources =
+                    CompletableFuture.supplyAsync(this::open, io);
+            CompletableFuture<Void> raw = sources.thenAcceptAsync(this::saveRaw, io);
+            CompletableFuture<Intermediate> aligned = sources.thenApplyAsync(this::align, pool);
+            CompletableFuture<Intermediate> pmap = aligned.thenApplyAsync(this::classify, pool);
+            CompletableFuture<Intermediate> objects = pmap.thenApplyAsync(this::segment, pool);
+            CompletableFuture<ResultsTable> table = objects.thenCombineAsync(aligned, this::quantify, pool);
+            CompletableFuture<Void> plot = table.thenAcceptBothAsync(aligned, this::plot, pool);
+
+            CompletableFuture<Void> done = CompletableFuture.allOf(raw, plot).whenComplete((v, e) -> {
+                release(aligned);
+                release(pmap);
+                release(objects);
+            });
+            // Datasets written before a failure are kept
+            return done.handle((v, e) -> null).thenCompose(v -> writer.commit(sample.hdf5)).thenCompose(v -> done);
+        }
+
+        private void release(CompletableFuture<Intermediate> future) {
+            if (future.isDone() && (! future.isCompletedExceptionally())) {
+                future.join().release();
+            }
+        }
+
+        private <T> T measure(String name, Function<RunReport.Stage, T> body) {
+            RunReport.Stage stage = report.start(sample.hdf5.getName(), name);
+            try {
+                return body.apply(stage);
+            } catch (RuntimeException | Error e) {
+                stage.failed(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                throw e;
+            } finally {
+                stage.done();
+            }
+        }
+
+        private PreProcessing.ImagePreprocessor open() {
+            return measure("open", stage -> {
+                logService.log(LogLevel.INFO, "Opening " + sample.sources.values());
+                PreProcessing.ImagePreprocessor processor = preProcessing.new ImagePreprocessor(sample, offsets);
+                processor.initialize();
+                return processor;
+            });
+        }
+
+        private void saveRaw(PreProcessing.ImagePreprocessor processor) {
+            measure("raw", stage -> {
+                if (checkpoints.contains("metadata")) {
+                    stage.written(processor.saveMetadata());
+                }
+                if (checkpoints.contains("raw")) {
+                    stage.written(processor.saveRaw());
+                }
+                return null;
+            });
+        }
+
+        private Intermediate align(PreProcessing.ImagePreprocessor processor) {
+            return measure("align", stage -> {
+                Dataset image = processor.getAligned();
+                if (image == null) {
+                    throw new CompletionException(new IllegalStateException("Failed to align " + sample.sources.values()));
+                }
+                ImagePlus imp = ImageBridge.toImagePlus(image, convertService);
+                stage.voxels(RunReport.voxels(imp) * imp.getNChannels());
+                if (checkpoints.contains("projections")) {
+                    // Projections are taken before the aligned image may be handed over to the writer
+                    Projections[] projections = IntStream.range(0, imp.getNChannels())
+                            .mapToObj(c -> Projections.compute(imp, c)).toArray(Projections[]::new);
+                    ImagePlus[] images = Projections.stack(projections, imp.getCalibration());
+                    for (int k = 0; k < images.length; k++) {
+                        stage.written(RunReport.bytes(images[k]));
+                        writer.hdf5(sample.hdf5, images[k], Projections.dataset(Projections.KINDS[k]));
+                    }
+                }
+                return new Intermediate(imp, sample.hdf5, "/aligned/channel{c}", checkpoints.contains("aligned"));
+            });
+        }
+
+        private Intermediate classify(Intermediate aligned) {
+            return measure("classify", stage -> {
+                if (classification == null) {
+                    ImagePlus pmap = writer.read(sample.hdf5, session -> session.read("/weka/pmap" + pmapChannel)).join();
+                    stage.read(pmap);
+                    return new Intermediate(pmap, sample.hdf5, "/weka/pmap" + pmapChannel, false);
+                }
+                try {
+                    ImagePlus input = aligned.channel(classificationChannel);
+                    ImagePlus result = classification.classify(input, tilePool);
+                    stage.voxels(RunReport.voxels(input));
+                    Intermediate pmap = new Intermediate(result, sample.hdf5, "/weka/pmap{c}", checkpoints.contains("pmap"));
+                    input.close();
+                    return pmap;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+
+        private Intermediate segment(Intermediate pmap) {
+            return measure("segment", stage -> {
+                ImagePlus input = classification == null ? pmap.get() : pmap.channel(pmapChannel);
+                ImagePlus labels = segmentation.segment(input);
+                stage.voxels(RunReport.voxels(input));
+                input.close();
+                pmap.release();
+                return new Intermediate(labels, sample.hdf5, "/segmentation/objects", checkpoints.contains("objects"));
+            });
+        }
+
+        private ResultsTable quantify(Intermediate objects, Intermediate aligned) {
+            return measure("quantify", stage -> {
+                // Channels are named after their datasets, so Quantification can update the saved accumulators
+                Map<String, ImagePlus> channels = new LinkedHashMap<>();
+                for (int c : quantChannels) {
+                    channels.put("/aligned/channel" + c, aligned.channel(c));
+                }
+                ImagePlus objectLabels = objects.get();
+                ImagePlus labels = quantification.relabel(objectLabels, sample.hdf5);
+                LabelAccumulators accumulators = quantification.quantify(channels, labels);
+                ResultsTable table = accumulators.table();
+                SpatialIndex index = quantification.hasNeighbours() ? quantification.addNeighbours(table, labels) : null;
+                stage.voxels(RunReport.voxels(labels) * (channels.size() + (surfaces ? 2 : 1)));
+                if (checkpoints.contains("csv")) {
+                    File csv = new File(sample.hdf5.getPath().replace(".h5", ".csv"));
+                    File sidecar = new File(sample.hdf5.getPath().replace(".h5", ".acc"));
+                    logService.log(LogLevel.INFO, "Saving point cloud to " + csv);
+                    writer.file(csv, temp -> {
+                        table.save(temp.getPath());
+                        stage.written(RunReport.bytes(temp));
+                    });
+                    writer.file(sidecar, temp -> {
+                        accumulators.save(temp);
+                        stage.written(RunReport.bytes(temp));
+                    });
+                    if (index != null) {
+                        writer.file(new File(sample.hdf5.getPath().replace(".h5", ".idx")), temp -> {
+                            index.save(temp);
+                            stage.written(RunReport.bytes(temp));
+                        });
+                    }
+                    // The saved accumulators refer to the labels they were measured on
+                    if (labels != objectLabels) {
+                        stage.written(RunReport.bytes(labels));
+                        writer.hdf5(sample.hdf5, RunReport.bytes(labels),
+                                Quantification.saveRelabeled(labels, objectLabels));
+                    } else {
+                        writer.hdf5(sample.hdf5, session -> session.delete(Quantification.RELABELED_DATASET));
+                    }
+                }
+                objects.release();
+                return table;
+            });
+        }
+
+        private void plot(ResultsTable table, Intermediate aligned) {
+            measure("plot", stage -> {
+                ImagePlus reference = aligned.channel(0);
+                ImagePlus plot = plotting.plot(table, reference);
+                if ((plot != null) && checkpoints.contains("plot")) {
+                    stage.written(plot);
+                    writer.hdf5(sample.hdf5, plot, "/plot/nuclei/channel{c}");
+                } else if (plot != null) {
+                    plot.close();
+                }
+                reference.close();
+                return null;
+            });
+        }
+    }
+
+    public static void main(String... args) {
+        Logger root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+
+        final ImageJ ij = new ImageJ();
+        ij.launch(args);
+
+        int received = 0;
+        boolean errors = false;
+
+        while(received < 1 && !errors) {
+            Future future = ij.command().run(Pipeline.class, true);
+            try {
+                future.get();
+                received++;
+            }
+            catch(Exception e) {
+                errors = true;
+            }
+        }
+
+        System.exit(0);
+    }
+}
@@ -3,8 +3,9 @@ package eu.hassanlab.rdnwdp;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ij.ImagePlus;
-import ij.plugin.RGBStackMerge;
-import mcib3d.geom.ObjectCreator3D;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 import net.imagej.ImageJ;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
@@ -14,16 +15,15 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.slf4j.LoggerFactory;
-import sc.fiji.hdf5.HDF5ImageJ;
 
 import java.io.File;
 import java.io.FileReader;
-import java.io.IOException;
 import java.io.Reader;
-import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.stream.IntStream;
 
 
 @Plugin(type = Command.class, menuPath = "Plugins>RDN-WDP>Plotting")
@@ -41,46 +41,60 @@ public class Plotting implements Command {
     @Parameter(label = "Reference Dataset")
     private String referenceDataset = "/aligned/channel0";
 
+    @Parameter(label = "Plotting mode", choices = {ELLIPSOIDS, LABELS})
+    private String plotMode = ELLIPSOIDS;
+
+    @Parameter(label = "Labeling Dataset (label mode)")
+    private String labelDataset = "/segmentation/objects";
+
     @Parameter(label = "Plot Dataset")
     private String plotDataset = "/plot/nuclei/channel{c}";
 
+    @Parameter(label = "Dataset catalog (.yml)", required = false)
+    private File catalogFile;
+
     @Parameter(label = "Number of threads", required = false)
     private Integer threads;
 
+    @Parameter(label = "Work directory (shared between nodes)", style = "directory", required = false, persist = false)
+    private File workDirectory;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    static final String ELLIPSOIDS = "Ellipsoids";
+    static final String LABELS = "Labels";
+
+    private RunReport report = new RunReport("Plotting");
+    private WorkQueue queue;
+    private AsyncWriter writer;
+    private DatasetIndex catalog;
+
     @Override
     public void run() {
-        List<File> list = new ArrayList<>();
-        try {
-            Files.walk(inputFolder.toPath()).forEach(entry -> {
-                File file = entry.toFile();
-                if (file.isFile() && file.getPath().endsWith(".csv")) {
-                    list.add(file);
-                }
-            });
-        } catch (IOException e) {
-            logService.log(LogLevel.WARN, "Error when walking path " + inputFolder.getPath());
-        }
-
+        report = new RunReport("Plotting");
+        queue = new WorkQueue(workDirectory, inputFolder, "Plotting", logService);
         ExecutorService pool = Executors.newFixedThreadPool(threads);
         ExecutorCompletionService<Object> ecs = new ExecutorCompletionService<>(pool);
+        writer = new AsyncWriter(logService);
+        catalog = DatasetIndex.open(catalogFile != null ? catalogFile : new File(inputFolder, Catalog.CATALOG_FILE),
+                logService);
 
-        for (File file : list) {
-            //ImagePlotter plotter = new ImagePlotter(file);
-            //plotter.call();
-            ecs.submit(new ImagePlotter(file));
-        }
-
-        int submitted = list.size();
+        int submitted = new SampleDiscovery(inputFolder, logService).extension(".csv").stream(file ->
+                ecs.submit(queue.task(file, new ImagePlotter(file))));
         while (submitted > 0) {
             try {
                 ecs.take().get();
             } catch (Exception e) {
-                logService.log(LogLevel.WARN, "One of the plotting threads failed!");
+                logService.log(LogLevel.WARN, "One of the plotting threads failed!", e);
             }
             submitted--;
         }
 
         pool.shutdown();
+        writer.close();
+        queue.close();
+        report.save(reportFile, logService);
     }
 
     class ImagePlotter implements Callable<Object> {
@@ -88,29 +102,89 @@ public class Plotting implements Command {
         private File file;
         private File hdf5;
         private ImagePlus reference;
+        private int width;
+        private int height;
+        private int depth;
+        private Calibration calibration;
+        private List<Nucleus> nuclei;
+        private ImagePlus plot;
+        private long queued;
 
         ImagePlotter(File file) {
             this.file = file;
             hdf5 = new File(file.getPath().replace(".csv", ".h5"));
-            reference = HDF5ImageJ.hdf5read(hdf5.getPath(), referenceDataset, "zyx");
+            queued = System.nanoTime();
         }
 
-        @Override
-        public Object call() {
+        ImagePlotter(ImagePlus reference) {
+            setReference(reference);
+        }
 
+        private void setReference(ImagePlus reference) {
+            this.reference = reference;
+            width = reference.getWidth();
+            height = reference.getHeight();
+            depth = reference.getNSlices();
+            calibration = reference.getCalibration();
+        }
+
+        // Ellipsoids only need the size and calibration of the reference, which come from the catalog or metadata
+        private void setReference(DatasetIndex.Entry entry) {
+            width = entry.width();
+            height = entry.height();
+            depth = entry.depth();
+            calibration = entry.calibration();
+        }
+
+        @Override
+        public Object call() throws Exception {
+            String sample = file.getName();
             logService.log(LogLevel.INFO, "Processing " + file.getPath());
-            List<Nucleus> nuclei = readCSV();
-            ImagePlus plot = plotNuclei(nuclei);
-            if (plot != null) {
-                HDF5ImageJ.hdf5write(plot, hdf5.getPath(), plotDataset, "", "%d", 0, false);
-                logService.log(LogLevel.INFO, "Results saved to " + hdf5.getPath());
-                plot.close();
-                plot = null;
-            } else {
-                logService.log(LogLevel.WARN, "Failed to generate plot for " + file.getPath());
-            }
-            reference.close();
-            reference = null;
+            report.measure(sample, "read", queued, stage -> {
+                // In label mode the label image is also the reference for the size and calibration
+                if (LABELS.equals(plotMode)) {
+                    // Relabeled objects are the ones the quantification results refer to
+                    try (HDF5Session session = HDF5Session.read(hdf5)) {
+                        String dataset = session.exists(Quantification.RELABELED_DATASET) ?
+                                Quantification.RELABELED_DATASET : labelDataset;
+                        setReference(session.read(dataset));
+                    }
+                } else {
+                    DatasetIndex.Entry entry = catalog.get(hdf5, referenceDataset);
+                    if (entry == null) {
+                        try (HDF5Session session = HDF5Session.read(hdf5)) {
+                            entry = DatasetIndex.describe(session, referenceDataset);
+                        }
+                    }
+                    setReference(entry);
+                }
+                nuclei = readCSV();
+                stage.read(reference).read(RunReport.bytes(file));
+            });
+
+            report.measure(sample, "plot", stage -> {
+                plot = LABELS.equals(plotMode) ? plotLabels(nuclei) : plotNuclei(nuclei);
+                stage.voxels(RunReport.voxels(plot) * (plot != null ? plot.getNChannels() : 0));
+            });
+
+            report.measure(sample, "write", stage -> {
+                if (plot != null) {
+                    stage.written(plot);
+                    writer.hdf5(hdf5, plot, plotDataset).thenRun(() ->
+                            logService.log(LogLevel.INFO, "Results saved to " + hdf5.getPath()));
+                    plot = null;
+                } else {
+                    logService.log(LogLevel.WARN, "Failed to generate plot for " + file.getPath());
+                }
+            });
+            if (reference != null) {
+                reference.close();
+                reference = null;
+            }
+            nuclei = null;
+            if (queue.isShared()) {
+                writer.flush(hdf5).join();
+            }
 
             return this;
         }
@@ -141,63 +215,232 @@ public class Plotting implements Command {
             }
 
             final int nChannels = nuclei.get(0).sizeF();
-            ImagePlus[] channelImages = new ImagePlus[nChannels];
-
-            for (int k = 0; k < nChannels; k++) {
-                ObjectCreator3D objectImage =
-                        new ObjectCreator3D(reference.getWidth(), reference.getHeight(), reference.getNSlices());
-                for (Nucleus nucleus : nuclei) {
-                    objectImage.createEllipsoid(
-                        nucleus.getX(), nucleus.getY(),	nucleus.getZ(),
-                        nucleus.getR(), nucleus.getR(), nucleus.getR(),
-                        nucleus.getF(k), false);
+            short[][] planes = planes(nChannels * depth, width * height);
+            for (Nucleus nucleus : nuclei) {
+                nucleus.draw(planes, nChannels, width, height, depth, calibration);
+            }
+
+            return render(planes, nChannels, depth);
+        }
+
+        public ImagePlus plotLabels(List<Nucleus> nuclei) {
+
+            if (nuclei.size() == 0) {
+                return null;
+            }
+
+            final int nChannels = nuclei.get(0).sizeF();
+            int maxLabel = 0;
+            for (Nucleus nucleus : nuclei) {
+                if (nucleus.getLabel() < 0) {
+                    logService.log(LogLevel.WARN, "No labels in " + file.getPath() + ", drawing ellipsoids");
+                    return plotNuclei(nuclei);
                 }
-                channelImages[k] = new ImagePlus("Rendering C" + (k + 1), objectImage.getStack());
+                maxLabel = Math.max(maxLabel, nucleus.getLabel());
             }
 
-            ImagePlus result = RGBStackMerge.mergeChannels(channelImages, false);
+            // Dense lookup table of the values of each label, the background label 0 stays empty
+            short[] lut = new short[(maxLabel + 1) * nChannels];
+            for (Nucleus nucleus : nuclei) {
+                for (int c = 0; c < nChannels; c++) {
+                    lut[nucleus.getLabel() * nChannels + c] = (short) nucleus.getF(c);
+                }
+            }
+
+            int size = width * height;
+            int last = maxLabel;
+            ImageStack labels = reference.getStack();
+            short[][] planes = planes(nChannels * depth, size);
+            IntStream.range(0, depth).parallel().forEach(z -> {
+                Object pixels = labels.getPixels(z + 1);
+                for (int i = 0; i < size; i++) {
+                    int label = label(pixels, i);
+                    if ((label <= 0) || (label > last)) {
+                        continue;
+                    }
+                    for (int c = 0; c < nChannels; c++) {
+                        planes[z * nChannels + c][i] = lut[label * nChannels + c];
+                    }
+                }
+            });
+
+            return render(planes, nChannels, depth);
+        }
+
+        private short[][] planes(int count, int size) {
+            short[][] planes = new short[count][];
+            for (int p = 0; p < count; p++) {
+                planes[p] = new short[size];
+            }
+            return planes;
+        }
 
-            for (int k = 0; k < nChannels; k++) {
-                channelImages[k].close();
-                channelImages[k] = null;
+        private int label(Object pixels, int i) {
+            if (pixels instanceof short[]) {
+                return ((short[]) pixels)[i] & 0xffff;
+            } else if (pixels instanceof byte[]) {
+                return ((byte[]) pixels)[i] & 0xff;
+            } else if (pixels instanceof float[]) {
+                return (int) ((float[]) pixels)[i];
+            }
+            return ((int[]) pixels)[i];
+        }
+
+        private ImagePlus render(short[][] planes, int nChannels, int depth) {
+            // Planes are stored in the channel, slice order of ImageJ hyperstacks, so no merging is needed
+            ImageStack stack = new ImageStack(width, height);
+            for (short[] plane : planes) {
+                stack.addSlice("", plane);
             }
 
+            ImagePlus result = new ImagePlus("Rendering", stack);
+            result.setDimensions(nChannels, depth, 1);
+            result.setOpenAsHyperStack(true);
+            result.setCalibration(calibration.copy());
+
             return result;
         }
     }
 
+    ImagePlus plot(ResultsTable table, ImagePlus reference) {
+        List<Nucleus> nuclei = new ArrayList<>();
+        for (int row = 0; row < table.getCounter(); row++) {
+            nuclei.add(new Nucleus(table, row));
+        }
+        return new ImagePlotter(reference).plotNuclei(nuclei);
+    }
+
     class Nucleus {
-        private int x;
-        private int y;
-        private int z;
-        private int r;
+        private double x;
+        private double y;
+        private double z;
+        private double volume;
+        private int label = -1;
+        private double[] moments;
         private List<Integer> f;
 
         public Nucleus(CSVRecord record) {
-            x = Math.round(Float.parseFloat(record.get(1)));
-            y = Math.round(Float.parseFloat(record.get(2)));
-            z = Math.round(Float.parseFloat(record.get(3)));
-            r = (int) Math.round(Math.pow(Double.parseDouble(record.get(4)) * 0.75 / Math.PI, 1.0 / 3.0));
+            // Columns are looked up by name, so tables with additional columns can be plotted
+            x = Double.parseDouble(record.get("cx"));
+            y = Double.parseDouble(record.get("cy"));
+            z = Double.parseDouble(record.get("cz"));
+            volume = Double.parseDouble(record.get("Volume"));
+            if (record.isMapped("Label")) {
+                label = (int) Double.parseDouble(record.get("Label"));
+            }
+            if (record.isMapped(Quantification.MOMENTS[0])) {
+                moments = new double[Quantification.MOMENTS.length];
+                for (int m = 0; m < moments.length; m++) {
+                    moments[m] = Double.parseDouble(record.get(Quantification.MOMENTS[m]));
+                }
+            }
             f = new ArrayList<>();
-            for (int i = 6; i < record.size(); i = i + 2) {
-                f.add(Math.round(Float.parseFloat(record.get(i))));
+            for (int i = 0; record.isMapped("Mean " + i); i++) {
+                f.add(Math.round(Float.parseFloat(record.get("Mean " + i))));
             }
         }
 
-        public int getX() {
-            return x;
+        public Nucleus(ResultsTable table, int row) {
+            x = table.getValue("cx", row);
+            y = table.getValue("cy", row);
+            z = table.getValue("cz", row);
+            volume = table.getValue("Volume", row);
+            if (table.columnExists(table.getColumnIndex("Label"))) {
+                label = (int) table.getValue("Label", row);
+            }
+            if (table.columnExists(table.getColumnIndex(Quantification.MOMENTS[0]))) {
+                moments = new double[Quantification.MOMENTS.length];
+                for (int m = 0; m < moments.length; m++) {
+                    moments[m] = table.getValue(Quantification.MOMENTS[m], row);
+                }
+            }
+            f = new ArrayList<>();
+            for (int i = 0; table.columnExists(table.getColumnIndex("Mean " + i)); i++) {
+                f.add((int) Math.round(table.getValue("Mean " + i, row)));
+            }
         }
 
-        public int getY() {
-            return y;
+        private double[] shape(Calibration calibration) {
+            double[] scale = {calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth};
+            double[] shape = new double[6];
+            if (moments != null) {
+                // A solid ellipsoid x'A^-1x <= 1 has the covariance A/5, moments are converted to voxel units
+                int[][] axes = {{0, 0}, {1, 1}, {2, 2}, {0, 1}, {0, 2}, {1, 2}};
+                for (int m = 0; m < shape.length; m++) {
+                    shape[m] = 5 * moments[m] / (scale[axes[m][0]] * scale[axes[m][1]]);
+                }
+                if (invert(shape) != null) {
+                    return shape;
+                }
+            }
+            double r = Math.cbrt(volume * scale[0] * scale[1] * scale[2] * 0.75 / Math.PI);
+            for (int d = 0; d < 3; d++) {
+                shape[d] = (r / scale[d]) * (r / scale[d]);
+                shape[d + 3] = 0;
+            }
+            return shape;
         }
 
-        public int getZ() {
-            return z;
+        private double[] invert(double[] a) {
+            double c00 = a[1] * a[2] - a[5] * a[5];
+            double c01 = a[4] * a[5] - a[3] * a[2];
+            double c02 = a[3] * a[5] - a[4] * a[1];
+            double det = a[0] * c00 + a[3] * c01 + a[4] * c02;
+            if (! (det > 1e-12)) {
+                return null;
+            }
+            return new double[] {
+                    c00 / det,
+                    (a[0] * a[2] - a[4] * a[4]) / det,
+                    (a[0] * a[1] - a[3] * a[3]) / det,
+                    c01 / det,
+                    c02 / det,
+                    (a[3] * a[4] - a[0] * a[5]) / det
+            };
+        }
+
+        void draw(short[][] planes, int channels, int width, int height, int depth, Calibration calibration) {
+            double[] shape = shape(calibration);
+            double[] m = invert(shape);
+            if (m == null) {
+                return;
+            }
+            short[] values = new short[channels];
+            for (int c = 0; c < channels; c++) {
+                values[c] = (short) getF(c);
+            }
+
+            // Each row of the ellipsoid is a single span, found by solving the quadratic in x
+            int z0 = Math.max(0, (int) Math.ceil(z - Math.sqrt(shape[2])));
+            int z1 = Math.min(depth - 1, (int) Math.floor(z + Math.sqrt(shape[2])));
+            int y0 = Math.max(0, (int) Math.ceil(y - Math.sqrt(shape[1])));
+            int y1 = Math.min(height - 1, (int) Math.floor(y + Math.sqrt(shape[1])));
+            for (int zi = z0; zi <= z1; zi++) {
+                double dz = zi - z;
+                for (int yi = y0; yi <= y1; yi++) {
+                    double dy = yi - y;
+                    double b = m[3] * dy + m[4] * dz;
+                    double c = m[1] * dy * dy + 2 * m[5] * dy * dz + m[2] * dz * dz;
+                    double discriminant = b * b - m[0] * (c - 1);
+                    if (discriminant < 0) {
+                        continue;
+                    }
+                    double root = Math.sqrt(discriminant);
+                    int x0 = Math.max(0, (int) Math.ceil(x + (-b - root) / m[0]));
+                    int x1 = Math.min(width - 1, (int) Math.floor(x + (-b + root) / m[0]));
+                    if (x0 > x1) {
+                        continue;
+                    }
+                    int offset = yi * width;
+                    for (int k = 0; k < channels; k++) {
+                        Arrays.fill(planes[zi * channels + k], offset + x0, offset + x1 + 1, values[k]);
+                    }
+                }
+            }
         }
 
-        public int getR() {
-            return r;
+        public int getLabel() {
+            return label;
         }
 
         public int getF(int i) {
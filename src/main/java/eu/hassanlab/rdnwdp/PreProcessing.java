@@ -3,6 +3,7 @@ package eu.hassanlab.rdnwdp;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ij.ImagePlus;
+import ij.measure.Calibration;
 import io.scif.Format;
 import io.scif.Metadata;
 import io.scif.services.DatasetIOService;
@@ -15,6 +16,7 @@ import net.imagej.axis.CalibratedAxis;
 import net.imagej.ops.OpService;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.interpolation.randomaccess.FloorInterpolatorFactory;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
@@ -31,13 +33,12 @@ import org.yaml.snakeyaml.DumperOptions;
 import net.imglib2.FinalInterval;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -80,6 +81,9 @@ public class PreProcessing implements Command {
     @Parameter(label = "HDF5 datasets")
     private String datasetNameString = "/raw/dapi/channel0, /raw/venus/channel0, /raw/mcherry/channel0";
 
+    @Parameter(label = "Dataset catalog (HDF5, .yml)", required = false)
+    private File catalogFile;
+
     @Parameter(label = "Alignment offsets")
     private String offsetString = "0, 0, 0";
 
@@ -89,84 +93,130 @@ public class PreProcessing implements Command {
     @Parameter(label = "Aligned dataset prefix (output)")
     private String alignedPrefix = "aligned";
 
+    @Parameter(label = "Save projections (max, mean, std)")
+    private boolean saveProjections = true;
+
+    @Parameter(label = "Aligned image storage (off-heap up to -XX:MaxDirectMemorySize)", style = "listBox",
+            choices = {OffHeapStorage.HEAP, OffHeapStorage.DIRECT, OffHeapStorage.MAPPED})
+    private String storageType = OffHeapStorage.HEAP;
+
+    @Parameter(label = "Scratch folder (memory-mapped storage)", style = "directory", required = false, persist = false)
+    private File scratchFolder;
+
     @Parameter(label = "Number of threads", required = false)
     private Integer threads;
 
+    @Parameter(label = "Work directory (shared between nodes)", style = "directory", required = false, persist = false)
+    private File workDirectory;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    private RunReport report = new RunReport("PreProcessing");
+    private WorkQueue queue;
+    private AsyncWriter writer;
+    private DatasetIndex catalog;
 
     @Override
     public void run() {
-        String extension;
-        if (dataFormat.equals("Olympus OIF")) {
-            extension = ".oif";
-        } else {
-            extension = ".h5";
-        }
-        if (outputFolder == null) {
-            outputFolder = inputFolder;
-        }
         if (threads == null) {
-            threads = Runtime.getRuntime().availableProcessors() - 2;
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
         }
 
-        List<FileNameSet> samples = findSamples(extension);
-        String[] offsetStringArray = offsetString.replaceAll("\\s","").split( "," );
+        report = new RunReport("PreProcessing");
+        double[] offsets = getOffsets();
+        queue = new WorkQueue(workDirectory, inputFolder, "PreProcessing", logService);
         ExecutorService pool = Executors.newFixedThreadPool(threads);
         ExecutorCompletionService<Object> ecs = new ExecutorCompletionService<>(pool);
+        writer = new AsyncWriter(logService);
 
-        double[] offsets = new double[offsetStringArray.length];
-        for (int i = 0; i < offsetStringArray.length; i++) {
-            offsets[i] = Double.parseDouble(offsetStringArray[i]);
-        }
-
-        for (FileNameSet sample : samples) {
-            ecs.submit(new ImagePreprocessor(sample, offsets));
-        }
-
-        int submitted = samples.size();
+        int submitted = findSamples(sample -> {
+            File source = sample.sources.values().iterator().next();
+            ecs.submit(queue.task(source, new ImagePreprocessor(sample, offsets)));
+        });
         while (submitted > 0) {
             try {
                 ecs.take().get();
             } catch (Exception e) {
-                logService.log(LogLevel.WARN, "One of processing threads failed!");
-                e.printStackTrace();
+                logService.log(LogLevel.WARN, "One of processing threads failed!", e);
             }
             submitted--;
         }
 
         pool.shutdown();
+        writer.close();
+        queue.close();
+        report.save(reportFile, logService);
     }
 
-    private List<FileNameSet> findSamples(String extension) {
-        List<File> list = new ArrayList<>();
-        List<FileNameSet> samples = new ArrayList<>();
-        String[] datasetNames = datasetNameString.replaceAll("\\s","").split(",");
+    void setWriter(AsyncWriter writer) {
+        this.writer = writer;
+    }
+
+    List<FileNameSet> findSamples() {
+        List<FileNameSet> samples = Collections.synchronizedList(new ArrayList<>());
+        findSamples(samples::add);
+        return samples;
+    }
 
-        Path path = inputFolder.toPath();
-        try {
-            Files.walk(path).forEach(entry -> {
-                File file = entry.toFile();
-                if (file.isFile() && file.getPath().endsWith(extension)) {
-                    list.add(file);
+    int findSamples(Consumer<FileNameSet> consumer) {
+        String extension;
+        if (dataFormat.equals("Olympus OIF")) {
+            extension = ".oif";
+        } else {
+            extension = ".h5";
+        }
+        if (outputFolder == null) {
+            outputFolder = inputFolder;
+        }
+
+        String[] datasetNames = datasetNameString.replaceAll("\\s","").split(",");
+        SampleDiscovery discovery = new SampleDiscovery(inputFolder, logService).extension(extension);
+
+        if (extension.equals(".h5")) {
+            // Catalogued files are validated without opening them
+            catalog = DatasetIndex.open(catalogFile != null ? catalogFile : new File(inputFolder, Catalog.CATALOG_FILE),
+                    logService);
+            // Only the accepted samples are counted, not all the files found
+            AtomicInteger accepted = new AtomicInteger();
+            discovery.stream(file -> {
+                if (catalog.contains(file)) {
+                    for (String name : datasetNames) {
+                        if (catalog.get(file, name) == null) {
+                            logService.log(LogLevel.WARN, "Skipping " + file + ", dataset " + name + " not found");
+                            return;
+                        }
+                    }
                 }
+                consumer.accept(new HDF5FileNameSet(file, datasetNames));
+                accepted.incrementAndGet();
             });
-        } catch (IOException e) {
-            logService.log(LogLevel.WARN, "Error when walking path " + path);
+            return accepted.get();
         }
 
-
+        // Channels of OIF samples are matched by name, so all the files have to be found first
+        List<File> list = discovery.list();
+        int found = 0;
         for (File file : list) {
-            FileNameSet sample = null;
-            if (extension.equals(".h5")) {
-                sample = new HDF5FileNameSet(file, datasetNames);
-            } else if (file.getPath().toLowerCase().contains("dapi")) {
-                sample = new MATLFileNameSet(file, list, outputFolder.getPath());
-            }
-            if ((sample != null) && (sample.initialized)) {
-                samples.add(sample);
+            if (file.getPath().toLowerCase().contains("dapi")) {
+                FileNameSet sample = new MATLFileNameSet(file, list, outputFolder.getPath());
+                if (sample.initialized) {
+                    consumer.accept(sample);
+                    found++;
+                }
             }
         }
 
-        return samples;
+        return found;
+    }
+
+    double[] getOffsets() {
+        String[] offsetStringArray = offsetString.replaceAll("\\s","").split( "," );
+        double[] offsets = new double[offsetStringArray.length];
+        for (int i = 0; i < offsetStringArray.length; i++) {
+            offsets[i] = Double.parseDouble(offsetStringArray[i]);
+        }
+        return offsets;
     }
 
     class DatasetFile extends File {
@@ -309,8 +359,14 @@ public class PreProcessing implements Command {
                 Dataset image;
                 if (v instanceof DatasetFile) {
                     DatasetFile d = (DatasetFile) v;
+                    DatasetIndex.Entry entry = catalog != null ? catalog.get(v, d.getDataset()) : null;
+                    if ((entry != null) && (! checkImage(entry))) {
+                        logService.log(LogLevel.WARN, "Skipping " + v + ":" + d.getDataset() + " of shape " +
+                                Arrays.toString(entry.getShape()));
+                        return;
+                    }
                     ImagePlus imp = HDF5ImageJ.hdf5read(v.getPath(), d.getDataset(), "zyx");
-                    image = convertService.convert(imp, Dataset.class).duplicate();
+                    image = ImageBridge.toDataset(imp, datasetService, convertService);
                     imp.close();
                 } else {
                     try {
@@ -336,6 +392,10 @@ public class PreProcessing implements Command {
             return false;
         }
 
+        private boolean checkImage(DatasetIndex.Entry entry) {
+            return (entry.getShape().length > 2) && (entry.depth() - 1 > 20);
+        }
+
         Dataset getReference() {
             return images.get("dapi");
         }
@@ -411,17 +471,18 @@ public class PreProcessing implements Command {
     class ImageFusion<T extends RealType<T>> {
 
         private List<RandomAccessibleInterval<T>> images;
+        private Collection<Dataset> sources;
         private Dataset reference;
         private boolean initialized;
 
 
         ImageFusion(SourceImageSet sourceSet) {
             if (sourceSet.initialized) {
-                Map<String, Dataset> sources = sourceSet.images;
+                sources = sourceSet.images.values();
                 reference = sourceSet.getReference();
                 images = new ArrayList<>();
 
-                sources.forEach((k, image) -> {
+                sources.forEach(image -> {
                     int d = image.dimensionIndex(Axes.CHANNEL);
                     RandomAccessibleInterval<T> scaled = scaleImage(image);
                     if (d >= 0) {
@@ -460,6 +521,10 @@ public class PreProcessing implements Command {
 
 
         Dataset getAlignedImage(double[] offsets) {
+            return getAlignedImage(offsets, null);
+        }
+
+        Dataset getAlignedImage(double[] offsets, OffHeapStorage storage) {
             if (! initialized) {
                 return null;
             }
@@ -480,6 +545,13 @@ public class PreProcessing implements Command {
             long zsmax = (ex.isPresent() && ex.getAsLong() > 0) ? ex.getAsLong() : 0;
             long zslices = reference.max(zidx) + zsmax - zsmin;
 
+            if (FusionKernel.supports(reference, sources)) {
+                FusionKernel kernel = new FusionKernel(reference, sources);
+                if (kernel.size() == images.size()) {
+                    return createResult(datasetService.create(kernel.fuse(zshifts, zsmax, zslices + 1, storage)));
+                }
+            }
+
             List<RandomAccessibleInterval<T>> stack = new ArrayList<>();
             RealType zero = reference.firstElement().createVariable();
             zero.setZero();
@@ -517,7 +589,10 @@ public class PreProcessing implements Command {
         }
 
         private Dataset createResult(RandomAccessibleInterval<T> image) {
-            Dataset result = datasetService.create(image);
+            return createResult(datasetService.create(image));
+        }
+
+        private Dataset createResult(Dataset result) {
             result.setAxis(reference.axis(reference.dimensionIndex(Axes.X)), 0);
             result.setAxis(reference.axis(reference.dimensionIndex(Axes.Y)), 1);
             result.setAxis(reference.axis(reference.dimensionIndex(Axes.Z)), 2);
@@ -530,18 +605,24 @@ public class PreProcessing implements Command {
 
         private double[] offsets;
         private FileNameSet files;
+        private long queued;
         private boolean initialized;
         private SourceImageSet sources;
         private MetadataSet metadata;
         private ImageFusion processed;
+        private OffHeapStorage storage;
+        private Projections[] projections;
+        private Calibration calibration;
 
         ImagePreprocessor(FileNameSet files, double[] offsets) {
             this.offsets = offsets;
             this.files = files;
+            queued = System.nanoTime();
             initialized = false;
             sources = null;
             metadata = null;
             processed = null;
+            storage = null;
         }
 
         void initialize() {
@@ -552,68 +633,145 @@ public class PreProcessing implements Command {
                 }
                 if (sources != null) {
                     processed = new ImageFusion(sources);
+                    storage = OffHeapStorage.create(storageType, scratchFolder);
                     initialized = true;
                 }
             }
         }
 
-        void saveMetadata() {
+        long saveMetadata() {
             if ((! initialized) || (files.yml == null) || (! metadata.initialized)) {
-                return;
+                return 0;
             }
             logService.log(LogLevel.INFO, "Exporting metadata " + files.yml);
 
-            try (PrintWriter out = new PrintWriter(files.yml)) {
-                out.println(metadata.getYaml());
-            } catch (Exception e) {
-                logService.log(LogLevel.WARN, "Writing metadata failed!");
-            }
-
-            logService.log(LogLevel.INFO, "Metadata export done.");
+            String yaml = metadata.getYaml();
+            writer.file(files.yml, temp -> {
+                try (PrintWriter out = new PrintWriter(temp)) {
+                    out.println(yaml);
+                }
+            }).thenRun(() -> logService.log(LogLevel.INFO, "Metadata export done."));
+            return yaml.length() + 1;
         }
 
-        void saveRaw() {
+        long saveRaw() {
             if ((! initialized) || (! sources.initialized)) {
-                return;
+                return 0;
             }
             logService.log(LogLevel.INFO, "Exporting raw data " + files.hdf5);
 
-            sources.images.forEach((name, image) -> {
-                ImagePlus imp = convertService.convert(image, ImagePlus.class);
+            long written = 0;
+            for (Map.Entry<String, Dataset> entry : sources.images.entrySet()) {
+                String name = entry.getKey();
+                Dataset image = entry.getValue();
+                ImagePlus imp = ImageBridge.toImagePlus(image, convertService);
+                written += RunReport.bytes(imp);
                 if (image.dimension(Axes.CHANNEL) > 1) {
-                    HDF5ImageJ.hdf5write(imp, files.hdf5.getPath(), "/" + rawPrefix + "/" + name + "/channel{c}", "", "%d", 0, false);
+                    writer.hdf5(files.hdf5, imp, "/" + rawPrefix + "/" + name + "/channel{c}");
                 } else {
-                    HDF5ImageJ.hdf5write(imp, files.hdf5.getPath(), "/" + rawPrefix + "/" + name, "", "", 0, false);
+                    writer.hdf5(files.hdf5, imp, "/" + rawPrefix + "/" + name);
                 }
-                imp.close();
-            });
+            }
 
-            logService.log(LogLevel.INFO, "Raw data export done.");
+            writer.flush(files.hdf5).thenRun(() -> logService.log(LogLevel.INFO, "Raw data export done."));
+            return written;
         }
 
-        void saveAligned() {
+        Dataset getAligned() {
             if ((! initialized) || (! processed.initialized)) {
-                return;
+                return null;
+            }
+            return processed.getAlignedImage(offsets, storage);
+        }
+
+        long saveAligned() {
+            if ((! initialized) || (! processed.initialized)) {
+                return 0;
             }
             logService.log(LogLevel.INFO, "Exporting aligned data " + files.hdf5);
-            Dataset image = processed.getAlignedImage(offsets);
-            if (image != null) {
-                ImagePlus imp = convertService.convert(image, ImagePlus.class);
-                HDF5ImageJ.hdf5write(imp, files.hdf5.getPath(), "/" + alignedPrefix + "/channel{c}", "", "%d", 0, false);
-                imp.close();
+            long written = 0;
+            Dataset image = processed.getAlignedImage(offsets, storage);
+            if ((image != null) && (storage != null) && (image.getImgPlus().getImg() instanceof PlanarImg)) {
+                // Only one channel at a time is copied to the heap for writing, projections are taken from the copy
+                projections = new Projections[(int) image.dimension(Axes.CHANNEL)];
+                for (int c = 0; c < projections.length; c++) {
+                    ImagePlus imp = ImageBridge.copy(image, c);
+                    written += RunReport.bytes(imp);
+                    if (saveProjections) {
+                        projections[c] = Projections.compute(imp, 0);
+                        calibration = imp.getCalibration().copy();
+                    }
+                    writer.hdf5(files.hdf5, imp, "/" + alignedPrefix + "/channel" + c).join();
+                }
+            } else if (image != null) {
+                ImagePlus imp = ImageBridge.toImagePlus(image, convertService);
+                written = RunReport.bytes(imp);
+                projections = new Projections[imp.getNChannels()];
+                for (int c = 0; (c < projections.length) && saveProjections; c++) {
+                    projections[c] = Projections.compute(imp, c);
+                }
+                calibration = imp.getCalibration().copy();
+                writer.hdf5(files.hdf5, imp, "/" + alignedPrefix + "/channel{c}");
+            }
+            writer.flush(files.hdf5).thenRun(() -> logService.log(LogLevel.INFO, "Aligned data export done."));
+            return written;
+        }
+
+        long writeProjections() {
+            if ((! saveProjections) || (projections == null) || (projections.length == 0) || (projections[0] == null)) {
+                return 0;
+            }
+            long written = 0;
+            ImagePlus[] images = Projections.stack(projections, calibration);
+            for (int k = 0; k < images.length; k++) {
+                written += RunReport.bytes(images[k]);
+                writer.hdf5(files.hdf5, images[k], Projections.dataset(Projections.KINDS[k]));
+            }
+            projections = null;
+            return written;
+        }
+
+        public Object call() throws Exception {
+            String sample = files.hdf5.getName();
+            report.measure(sample, "open", queued, stage -> {
+                logService.log(LogLevel.INFO, "Initializing...");
+                initialize();
+                if (sources.initialized) {
+                    sources.images.values().forEach(image -> stage.read(RunReport.bytes(image)));
+                }
+            });
+            report.measure(sample, "metadata", stage -> {
+                logService.log(LogLevel.INFO, "Saving metadata...");
+                stage.written(saveMetadata());
+            });
+            // All the datasets of the sample are written to one copy of the file, which replaces it at the end
+            writer.begin(files.hdf5);
+            try {
+                report.measure(sample, "raw", stage -> {
+                    logService.log(LogLevel.INFO, "Saving raw images...");
+                    stage.written(saveRaw());
+                });
+                report.measure(sample, "aligned", stage -> {
+                    logService.log(LogLevel.INFO, "Saving aligned images...");
+                    stage.written(saveAligned());
+                });
+                report.measure(sample, "projections", stage -> {
+                    logService.log(LogLevel.INFO, "Saving projections...");
+                    stage.written(writeProjections());
+                });
+            } finally {
+                // The aligned image may still be written from the off-heap storage
+                try {
+                    writer.commit(files.hdf5).join();
+                } finally {
+                    if (storage != null) {
+                        storage.close();
+                    }
+                }
+            }
+            if (queue.isShared() && (files.yml != null)) {
+                writer.flush(files.yml).join();
             }
-            logService.log(LogLevel.INFO, "Aligned data export done.");
-        }
-
-        public Object call() {
-            logService.log(LogLevel.INFO, "Initializing...");
-            initialize();
-            logService.log(LogLevel.INFO, "Saving metadata...");
-            saveMetadata();
-            logService.log(LogLevel.INFO, "Saving raw images...");
-            saveRaw();
-            logService.log(LogLevel.INFO, "Saving aligned images...");
-            saveAligned();
             logService.log(LogLevel.INFO, "Done!");
             return this;
         }
@@ -0,0 +1,155 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+
+class Projections {
+
+    static final String MAX = "max";
+    static final String MEAN = "mean";
+    static final String STD = "std";
+    static final String MIN = "min";
+    static final String[] KINDS = {MAX, MEAN, STD, MIN};
+    static final String GROUP = "/projections";
+
+    // Projections are taken from the aligned channels
+    private static final Pattern SOURCE = Pattern.compile("/aligned/channel(\\d+)");
+    private static final int CACHE_SIZE = 64;
+
+    // Projections are small and often read again, they are kept until the memory is needed
+    private static final Map<String, SoftReference<ImagePlus>> cache =
+            new LinkedHashMap<String, SoftReference<ImagePlus>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SoftReference<ImagePlus>> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private float[][] planes;
+    private int width;
+    private int height;
+
+    private Projections(float[][] planes, int width, int height) {
+        this.planes = planes;
+        this.width = width;
+        this.height = height;
+    }
+
+    // All the projections of a channel are computed in a single pass over the slices, rows are processed in parallel
+    static Projections compute(ImagePlus image, int channel) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int depth = image.getNSlices();
+        ImageStack stack = image.getStack();
+        Object[] slices = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            slices[z] = stack.getPixels(image.getStackIndex(channel + 1, z + 1, 1));
+        }
+
+        float[] max = new float[width * height];
+        float[] mean = new float[width * height];
+        float[] std = new float[width * height];
+        float[] min = new float[width * height];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            int first = y * width;
+            double[] sum = new double[width];
+            double[] squares = new double[width];
+            float[] peak = new float[width];
+            float[] low = new float[width];
+            Arrays.fill(peak, Float.NEGATIVE_INFINITY);
+            Arrays.fill(low, Float.POSITIVE_INFINITY);
+            for (Object pixels : slices) {
+                for (int x = 0; x < width; x++) {
+                    float value = value(pixels, first + x);
+                    sum[x] += value;
+                    squares[x] += (double) value * value;
+                    peak[x] = Math.max(peak[x], value);
+                    low[x] = Math.min(low[x], value);
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                double m = sum[x] / depth;
+                max[first + x] = peak[x];
+                mean[first + x] = (float) m;
+                std[first + x] = (float) Math.sqrt(Math.max(0, squares[x] / depth - m * m));
+                min[first + x] = low[x];
+            }
+        });
+        return new Projections(new float[][] {max, mean, std, min}, width, height);
+    }
+
+    private static float value(Object pixels, int i) {
+        if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[i] & 0xff;
+        } else if (pixels instanceof short[]) {
+            return ((short[]) pixels)[i] & 0xffff;
+        }
+        return ((float[]) pixels)[i];
+    }
+
+    // Projections of all the channels are stacked, so each kind is written as one dataset per channel
+    static ImagePlus[] stack(Projections[] channels, Calibration calibration) {
+        ImagePlus[] images = new ImagePlus[KINDS.length];
+        for (int k = 0; k < KINDS.length; k++) {
+            ImageStack stack = new ImageStack(channels[0].width, channels[0].height);
+            for (Projections projections : channels) {
+                stack.addSlice(KINDS[k], projections.planes[k]);
+            }
+            ImagePlus image = new ImagePlus(KINDS[k] + " projection", stack);
+            image.setDimensions(channels.length, 1, 1);
+            image.setCalibration(calibration.copy());
+            images[k] = image;
+        }
+        return images;
+    }
+
+    static String dataset(String kind) {
+        return GROUP + "/" + kind + "/channel{c}";
+    }
+
+    static String dataset(String kind, int channel) {
+        return GROUP + "/" + kind + "/channel" + channel;
+    }
+
+    // Channel of the aligned dataset the projections were taken from, or -1
+    static int channel(String dataset) {
+        Matcher matcher = SOURCE.matcher(dataset);
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    // Cached images are shared between the callers, so they must not be modified or closed
+    static ImagePlus get(File file, String kind, int channel) {
+        String dataset = dataset(kind, channel);
+        String key = file.getAbsolutePath() + ":" + file.lastModified() + ":" + dataset;
+        synchronized (cache) {
+            SoftReference<ImagePlus> reference = cache.get(key);
+            ImagePlus image = reference != null ? reference.get() : null;
+            if (image != null) {
+                return image;
+            }
+        }
+
+        ImagePlus image;
+        try (HDF5Session session = HDF5Session.read(file)) {
+            if (! session.exists(dataset)) {
+                return null;
+            }
+            image = session.read(dataset);
+        }
+        synchronized (cache) {
+            cache.put(key, new SoftReference<>(image));
+        }
+        return image;
+    }
+}
@@ -3,16 +3,8 @@ package eu.hassanlab.rdnwdp;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ij.ImagePlus;
-import ij.ImageStack;
+import ij.measure.Calibration;
 import ij.measure.ResultsTable;
-import ij.plugin.ChannelSplitter;
-import ij.plugin.RGBStackMerge;
-import mcib3d.geom.Object3D;
-import mcib3d.geom.Object3DVoxels;
-import mcib3d.geom.Objects3DPopulation;
-import mcib3d.geom.Voxel3D;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
 import net.imagej.ImageJ;
 import org.scijava.command.Command;
 import org.scijava.log.LogLevel;
@@ -20,15 +12,11 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.slf4j.LoggerFactory;
-import sc.fiji.hdf5.HDF5ImageJ;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.IntStream;
 
 
 @Plugin(type = Command.class, menuPath = "Plugins>RDN-WDP>Quantification")
@@ -52,158 +40,343 @@ public class Quantification implements Command {
     @Parameter(label = "Number of threads")
     private Integer threads;
 
+    @Parameter(label = "Quantification mode", choices = {FULL, ADD_CHANNELS, UPDATE_LABELS})
+    private String mode = FULL;
+
+    @Parameter(label = "Labels to update (e.g. 12, 40-52)", required = false)
+    private String labelString;
+
+    @Parameter(label = "Relabel objects", choices = {RELABEL_NONE, RELABEL_COMPACT, RELABEL_CONNECTED})
+    private String relabelMode = RELABEL_NONE;
+
+    @Parameter(label = "Minimum object volume (voxels)")
+    private int minVolume = 0;
+
+    @Parameter(label = "Maximum object volume (voxels, 0 = no limit)")
+    private int maxVolume = 0;
+
+    @Parameter(label = "Maximum object extent (calibrated units, 0 = no limit)")
+    private double maxExtent = 0;
+
+    @Parameter(label = "Surface features")
+    private boolean surfaces = false;
+
+    @Parameter(label = "Background shell (dilation passes, 0 = off)")
+    private int backgroundShell = 0;
+
+    @Parameter(label = "Normalization percentiles")
+    private String percentileString = "1, 99";
+
+    @Parameter(label = "Neighbourhood features")
+    private boolean neighbours = false;
+
+    @Parameter(label = "Neighbourhood radius (calibrated units)")
+    private double neighbourRadius = 10.0;
+
+    @Parameter(label = "Work directory (shared between nodes)", style = "directory", required = false, persist = false)
+    private File workDirectory;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    static final String FULL = "Full";
+    static final String ADD_CHANNELS = "Add channels";
+    static final String UPDATE_LABELS = "Update labels";
+    static final String RELABEL_NONE = "None";
+    static final String RELABEL_COMPACT = "Compact labels";
+    static final String RELABEL_CONNECTED = "Connected components";
+    static final String RELABELED_DATASET = "/segmentation/relabeled";
+    static final String RELABELED_SOURCE = "source_crc32";
+    static final String[] MOMENTS = {"Mxx", "Myy", "Mzz", "Mxy", "Mxz", "Myz"};
+
+    private RunReport report = new RunReport("Quantification");
+    private WorkQueue queue;
+    private AsyncWriter writer;
+
+    private double[] percentiles = {1, 99};
+
     @Override
     public void run() {
-        List<File> list = new ArrayList<>();
-        try {
-            Files.walk(inputFolder.toPath()).forEach(entry -> {
-                File file = entry.toFile();
-                if (file.isFile() && file.getPath().endsWith(".h5")) {
-                    list.add(file);
-                }
-            });
-        } catch (IOException e) {
-            logService.log(LogLevel.WARN, "Error when walking path " + inputFolder.getPath());
+        report = new RunReport("Quantification");
+        if (! configure()) {
+            return;
         }
-
         String[] quantDatasets = quantNameString.replaceAll("\\s","").split(",");
+        Set<Integer> subset = parseLabels(labelString);
 
+        queue = new WorkQueue(workDirectory, inputFolder, "Quantification", logService);
         ExecutorService pool = Executors.newFixedThreadPool(threads);
         ExecutorCompletionService<Object> ecs = new ExecutorCompletionService<>(pool);
+        writer = new AsyncWriter(logService);
 
-        for (File file : list) {
-            ecs.submit(new ImageQuantifier(file, quantDatasets));
-        }
-
-        int submitted = list.size();
+        int submitted = new SampleDiscovery(inputFolder, logService).extension(".h5").stream(file ->
+                ecs.submit(queue.task(file, new ImageQuantifier(file, quantDatasets, subset))));
         while (submitted > 0) {
             try {
                 ecs.take().get();
             } catch (Exception e) {
-                logService.log(LogLevel.WARN, "One of the quantification threads failed!");
-                e.printStackTrace();
+                logService.log(LogLevel.WARN, "One of the quantification threads failed!", e);
             }
             submitted--;
         }
 
         pool.shutdown();
+        writer.close();
+        queue.close();
+        report.save(reportFile, logService);
+    }
+
+    // Checks the options shared with the pipeline
+    boolean configure() {
+        if (neighbours && (neighbourRadius <= 0)) {
+            logService.log(LogLevel.ERROR, "Neighbourhood radius must be positive");
+            return false;
+        }
+        double[] levels = Arrays.stream(percentileString.replaceAll("\\s","").split(","))
+                .mapToDouble(Double::parseDouble).toArray();
+        if ((levels.length != 2) || (levels[0] < 0) || (levels[1] > 100) || (levels[0] >= levels[1])) {
+            logService.log(LogLevel.ERROR, "Normalization percentiles must be two increasing values between 0 and 100");
+            return false;
+        }
+        percentiles = levels;
+        return true;
+    }
+
+    private Set<Integer> parseLabels(String labelString) {
+        if ((labelString == null) || labelString.trim().isEmpty()) {
+            return null;
+        }
+        Set<Integer> labels = new HashSet<>();
+        for (String item : labelString.replaceAll("\\s","").split(",")) {
+            String[] range = item.split("-");
+            int first = Integer.parseInt(range[0]);
+            int last = range.length > 1 ? Integer.parseInt(range[1]) : first;
+            for (int label = first; label <= last; label++) {
+                labels.add(label);
+            }
+        }
+        return labels;
     }
 
     class ImageQuantifier implements Callable<Object> {
 
         private File file;
+        private File sidecar;
+        private File csv;
+        private File index;
         private String[] datasets;
-
-        ImageQuantifier(File file, String[] datasets) {
+        private Set<Integer> subset;
+        private long queued;
+        private Map<String, ImagePlus> channels;
+        private ImagePlus labels;
+        private boolean relabeled;
+        private boolean stale;
+        private LabelAccumulators accumulators;
+        private ResultsTable result;
+
+        ImageQuantifier(File file, String[] datasets, Set<Integer> subset) {
             this.file = file;
             this.datasets = datasets;
+            this.subset = subset;
+            sidecar = new File(file.getPath().replace(".h5", ".acc"));
+            csv = new File(file.getPath().replace(".h5", ".csv"));
+            index = new File(file.getPath().replace(".h5", ".idx"));
+            queued = System.nanoTime();
+        }
+
+        // Saved results refer to the relabeled objects, which are out of date once the original labels are edited
+        private void checkRelabeled(HDF5Session session, RunReport.Stage stage) {
+            Long source = session.longAttribute(RELABELED_DATASET, RELABELED_SOURCE);
+            if (source == null) {
+                logService.log(LogLevel.WARN, "Cannot check whether " + labelDataset + " of " + file.getPath() +
+                        " changed since it was relabeled");
+                return;
+            }
+            ImagePlus original = session.read(labelDataset);
+            stage.read(original);
+            long checksum = Relabeling.checksum(original);
+            original.close();
+            if (checksum != source) {
+                throw new IllegalStateException(labelDataset + " of " + file.getPath() + " changed since it was " +
+                        "relabeled, run a " + FULL + " quantification");
+            }
         }
 
         @Override
-        public Object call() {
-            ImagePlus[] channels = Arrays.stream(datasets)
-                    .map(dataset -> HDF5ImageJ.hdf5read(file.getPath(), dataset, "zyx"))
-                    .toArray(ImagePlus[]::new);
+        public Object call() throws Exception {
+            String sample = file.getName();
+            report.measure(sample, "read", queued, stage -> {
+                if ((! FULL.equals(mode)) && sidecar.isFile()) {
+                    accumulators = LabelAccumulators.load(sidecar);
+                    stage.read(RunReport.bytes(sidecar));
+                } else if (! FULL.equals(mode)) {
+                    logService.log(LogLevel.WARN, "No accumulators for " + file.getPath() + ", quantifying all labels");
+                }
+                // Incremental modes only read the channels which were not measured yet, updates read blocks of the
+                // others later
+                channels = new LinkedHashMap<>();
+                try (HDF5Session session = HDF5Session.read(file)) {
+                    for (String dataset : datasets) {
+                        if ((accumulators == null) || (! accumulators.hasChannel(dataset))) {
+                            channels.put(dataset, session.read(dataset));
+                        }
+                    }
+                    // Saved accumulators refer to the relabeled objects, so they are updated from the same labels
+                    boolean saved = session.exists(RELABELED_DATASET);
+                    relabeled = saved && (! FULL.equals(mode));
+                    stale = saved && FULL.equals(mode) && RELABEL_NONE.equals(relabelMode);
+                    labels = session.read(relabeled ? RELABELED_DATASET : labelDataset);
+                    if (relabeled) {
+                        checkRelabeled(session, stage);
+                    }
+                }
+                channels.values().forEach(stage::read);
+                stage.read(labels);
+            });
 
-            ImagePlus image = RGBStackMerge.mergeChannels(channels, false);
-            Objects3DPopulation objects = addVoxels(HDF5ImageJ.hdf5read(file.getPath(), labelDataset, "zyx"));
-            ResultsTable result = getMeasurements(objects, image);
+            if (stale) {
+                // Results of a run without relabeling refer to the original labels
+                writer.hdf5(file, session -> session.delete(RELABELED_DATASET));
+            }
+            if ((! RELABEL_NONE.equals(relabelMode)) && (! relabeled)) {
+                report.measure(sample, "relabel", stage -> {
+                    ImagePlus relabeled = relabel(labels, file);
+                    // The results refer to the new labels, so they are saved for plotting and later updates
+                    writer.hdf5(file, RunReport.bytes(relabeled), saveRelabeled(relabeled, labels));
+                    labels.close();
+                    labels = relabeled;
+                    stage.voxels(RunReport.voxels(labels));
+                    stage.written(RunReport.bytes(labels));
+                });
+            }
 
-            result.save(file.getPath().replace(".h5", ".csv"));
+            report.measure(sample, "quantify", stage -> {
+                // Accumulators measured here are up to date, without a sidecar an update is the same as a full run
+                boolean measured = accumulators == null;
+                if (measured) {
+                    accumulators = LabelAccumulators.measure(labels);
+                }
+                accumulators.setBackground(backgroundShell, percentiles[0], percentiles[1]);
+                if (UPDATE_LABELS.equals(mode) && (! measured)) {
+                    try (HDF5Session session = HDF5Session.read(file)) {
+                        accumulators = accumulators.update(labels, (channel, offset, block) -> {
+                            ImagePlus image = session.read(channel, offset, block);
+                            stage.read(image);
+                            return image;
+                        }, subset);
+                    }
+                }
+                accumulators = quantify(accumulators, channels, labels);
+                result = accumulators.table();
+                stage.voxels(RunReport.voxels(labels) * (channels.size() + (surfaces ? 2 : 1)));
+            });
+
+            if (neighbours) {
+                report.measure(sample, "neighbours", stage -> {
+                    SpatialIndex spatialIndex = addNeighbours(result, labels);
+                    stage.voxels(result.getCounter());
+                    writer.file(index, temp -> {
+                        spatialIndex.save(temp);
+                        stage.written(RunReport.bytes(temp));
+                    });
+                });
+            }
+
+            report.measure(sample, "write", stage -> {
+                ResultsTable table = result;
+                LabelAccumulators sums = accumulators;
+                writer.file(csv, temp -> {
+                    table.save(temp.getPath());
+                    stage.written(RunReport.bytes(temp));
+                });
+                writer.file(sidecar, temp -> {
+                    sums.save(temp);
+                    stage.written(RunReport.bytes(temp));
+                });
+            });
+            if (queue.isShared()) {
+                writer.flush(file, csv, sidecar, index).join();
+            }
+            channels = null;
+            labels = null;
+            accumulators = null;
+            result = null;
 
             return this;
         }
     }
 
-    private List<ArrayList<Voxel3D>> readVoxels(ImagePlus imp) {
-        ImageInt image = ImageInt.wrap(imp);
-        int minX = 0;
-        int maxX = image.sizeX;
-        int minY = 0;
-        int maxY = image.sizeY;
-        int minZ = 0;
-        int maxZ = image.sizeZ;
-        int minV = (int)(image.getMinAboveValue(0));
-        int maxV = (int)(image.getMax());
-
-        List<ArrayList<Voxel3D>> voxels = new ArrayList<>();
-        for (int i = 0; i < maxV - minV + 1; i++) {
-            ArrayList<Voxel3D> vlist = new ArrayList<>();
-            voxels.add(vlist);
-        }
-        for (int k = minZ; k < maxZ; k++) {
-            for (int j = minY; j<maxY; j++) {
-                for (int i = minX; i < maxX; i++) {
-                    float pixel = image.getPixel(i, j, k);
-                    if (pixel > 0) {
-                        Voxel3D voxel = new Voxel3D(i, j, k, pixel);
-                        int oid = (int)(pixel) - minV;
-                        voxels.get(oid).add(voxel);
-                    }
-                }
-            }
+    // The per-sample steps are shared with the pipeline, which keeps the images in memory
+    ImagePlus relabel(ImagePlus labels, File file) {
+        if (RELABEL_NONE.equals(relabelMode)) {
+            return labels;
         }
+        Relabeling relabeling = new Relabeling(RELABEL_CONNECTED.equals(relabelMode), minVolume, maxVolume, maxExtent);
+        ImagePlus relabeled = relabeling.relabel(labels);
+        logService.log(LogLevel.INFO, "Relabeled " + file.getPath() + ": " + relabeling.getObjects() +
+                " objects kept, " + relabeling.getRemoved() + " removed");
+        return relabeled;
+    }
 
-        List<ArrayList <Voxel3D>> objectVoxels = new ArrayList<>();
-        for (int i = 0; i < maxV - minV + 1; i++) {
-            if (voxels.get(i).size() > 0) {
-                objectVoxels.add(voxels.get(i));
-            }
-        }
+    // The checksum of the original labels is kept with the relabeled objects
+    static AsyncWriter.DatasetWrite saveRelabeled(ImagePlus relabeled, ImagePlus labels) {
+        long checksum = Relabeling.checksum(labels);
+        return session -> {
+            session.write(relabeled, RELABELED_DATASET, 0);
+            session.setAttribute(RELABELED_DATASET, RELABELED_SOURCE, checksum);
+        };
+    }
 
-        return objectVoxels;
+    LabelAccumulators quantify(Map<String, ImagePlus> channels, ImagePlus labels) {
+        return quantify(LabelAccumulators.measure(labels), channels, labels);
     }
 
-    private Objects3DPopulation addVoxels(List<ArrayList<Voxel3D>> objectVoxels, ImagePlus imagePlus) {
-        Objects3DPopulation objects = new Objects3DPopulation();
-        ImageInt image = ImageInt.wrap(imagePlus);
-        double xyres = image.getScaleXY();
-        double zres = image.getScaleZ();
-        objectVoxels.forEach(voxels -> {
-            if (voxels.size() > 0) {
-                Object3DVoxels objectV = new Object3DVoxels(voxels);
-                objectV.setResXY(xyres);
-                objectV.setResZ(zres);
-                objectV.setLabelImage(image);
-                objectV.computeContours();
-                objectV.setLabelImage(null);
-                objects.addObject(objectV);
+    // Channels which were already measured are kept
+    LabelAccumulators quantify(LabelAccumulators accumulators, Map<String, ImagePlus> channels, ImagePlus labels) {
+        accumulators.setBackground(backgroundShell, percentiles[0], percentiles[1]);
+        for (Map.Entry<String, ImagePlus> channel : channels.entrySet()) {
+            if (! accumulators.hasChannel(channel.getKey())) {
+                accumulators.addChannel(channel.getKey(), labels, channel.getValue());
             }
-        });
-
-        return objects;
+        }
+        if (surfaces) {
+            accumulators.measureSurfaces(labels);
+        }
+        return accumulators;
     }
 
-    private Objects3DPopulation addVoxels(ImagePlus imp) {
-        List<ArrayList<Voxel3D>> voxels = readVoxels(imp);
-        return addVoxels(voxels, imp);
+    boolean hasNeighbours() {
+        return neighbours;
     }
 
-    private ResultsTable getMeasurements(Objects3DPopulation objects, ImagePlus image) {
-        ArrayList<ImageHandler> imageChannels = new ArrayList<>();
-        for (int channel = 0; channel < image.getNChannels(); channel++) {
-            ImageStack channelStack = ChannelSplitter.getChannel(image, channel + 1);
-            imageChannels.add(ImageHandler.wrap(channelStack));
+    SpatialIndex addNeighbours(ResultsTable table, ImagePlus labels) {
+        int n = table.getCounter();
+        Calibration calibration = labels.getCalibration();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] z = new double[n];
+        for (int row = 0; row < n; row++) {
+            x[row] = table.getValue("cx", row) * calibration.pixelWidth;
+            y[row] = table.getValue("cy", row) * calibration.pixelHeight;
+            z[row] = table.getValue("cz", row) * calibration.pixelDepth;
         }
 
-        ResultsTable results = new ResultsTable();
-        results.showRowNumbers(false);
-        for (int index = 0; index < objects.getObjectsList().size(); index++) {
-            Object3D objectV = objects.getObjectsList().get(index);
-            results.incrementCounter();
-            results.addValue("Particle", index + 1);
-            results.addValue("cx", objectV.getCenterX());
-            results.addValue("cy", objectV.getCenterY());
-            results.addValue("cz", objectV.getCenterZ());
-            results.addValue("Volume", objectV.getVolumePixels());
-            for (int channel = 0; channel < imageChannels.size(); channel++) {
-                ImageHandler channelImage = imageChannels.get(channel);
-                results.addValue("Integral " + channel,  objectV.getIntegratedDensity(channelImage));
-                results.addValue("Mean " + channel, objectV.getPixMeanValue(channelImage));
-            }
-        }
+        SpatialIndex index = new SpatialIndex(x, y, z, neighbourRadius);
+
+        double[] nearest = new double[n];
+        int[] counts = new int[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            nearest[i] = index.nearestDistance(i);
+            counts[i] = index.countWithin(i, neighbourRadius);
+        });
 
-        return results;
+        double volume = 4.0 / 3.0 * Math.PI * Math.pow(neighbourRadius, 3);
+        for (int row = 0; row < n; row++) {
+            table.setValue("Nearest neighbour", row, nearest[row]);
+            table.setValue("Neighbours", row, counts[row]);
+            table.setValue("Density", row, counts[row] / volume);
+        }
+        return index;
     }
 
     public static void main(String... args) {
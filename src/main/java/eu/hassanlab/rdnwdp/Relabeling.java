@@ -0,0 +1,228 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+
+class Relabeling {
+
+    private boolean connected;
+    private int minVolume;
+    private int maxVolume;
+    private double maxExtent;
+    private int objects;
+    private int removed;
+
+    Relabeling(boolean connected, int minVolume, int maxVolume, double maxExtent) {
+        this.connected = connected;
+        this.minVolume = minVolume;
+        this.maxVolume = maxVolume;
+        this.maxExtent = maxExtent;
+    }
+
+    int getObjects() {
+        return objects;
+    }
+
+    int getRemoved() {
+        return removed;
+    }
+
+    ImagePlus relabel(ImagePlus labels) {
+        ImageStack stack = labels.getStack();
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        int depth = stack.getSize();
+        int plane = width * height;
+        Object[] pixels = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            pixels[z] = stack.getPixels(z + 1);
+        }
+
+        int[] roots = connected ?
+                components(pixels, width, height, Math.min(depth, Runtime.getRuntime().availableProcessors())) : null;
+
+        // Objects are numbered in the order they are found, the map only holds the objects and not the label range
+        IntIntMap ids = new IntIntMap();
+        int[] volume = new int[64];
+        int[][] bounds = new int[6][64];
+        for (int z = 0, i = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    int key = connected ? roots[i] : LabelAccumulators.label(pixels[z], i - z * plane);
+                    if (connected ? key < 0 : key <= 0) {
+                        continue;
+                    }
+                    int id = ids.get(key, -1);
+                    if (id < 0) {
+                        id = ids.size();
+                        ids.put(key, id);
+                        if (id == volume.length) {
+                            volume = Arrays.copyOf(volume, id * 2);
+                            for (int b = 0; b < bounds.length; b++) {
+                                bounds[b] = Arrays.copyOf(bounds[b], id * 2);
+                            }
+                        }
+                        bounds[0][id] = bounds[1][id] = x;
+                        bounds[2][id] = bounds[3][id] = y;
+                        bounds[4][id] = bounds[5][id] = z;
+                    }
+                    volume[id]++;
+                    bounds[0][id] = Math.min(bounds[0][id], x);
+                    bounds[1][id] = Math.max(bounds[1][id], x);
+                    bounds[2][id] = Math.min(bounds[2][id], y);
+                    bounds[3][id] = Math.max(bounds[3][id], y);
+                    bounds[4][id] = Math.min(bounds[4][id], z);
+                    bounds[5][id] = Math.max(bounds[5][id], z);
+                }
+            }
+        }
+
+        Calibration calibration = labels.getCalibration();
+        double[] scale = {calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth};
+        int[] compact = new int[ids.size()];
+        objects = 0;
+        for (int id = 0; id < compact.length; id++) {
+            double extent = 0;
+            for (int d = 0; d < 3; d++) {
+                extent = Math.max(extent, (bounds[2 * d + 1][id] - bounds[2 * d][id] + 1) * scale[d]);
+            }
+            boolean keep = (volume[id] >= minVolume) && ((maxVolume <= 0) || (volume[id] <= maxVolume)) &&
+                    ((maxExtent <= 0) || (extent <= maxExtent));
+            compact[id] = keep ? ++objects : 0;
+        }
+        removed = compact.length - objects;
+
+        // 16-bit labels are used as long as all the objects fit
+        boolean shorts = objects <= 65535;
+        ImageStack result = new ImageStack(width, height);
+        Object[] planes = new Object[depth];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            short[] s = shorts ? new short[plane] : null;
+            float[] f = shorts ? null : new float[plane];
+            for (int p = 0; p < plane; p++) {
+                int i = z * plane + p;
+                int key = connected ? roots[i] : LabelAccumulators.label(pixels[z], p);
+                int id = key >= 0 ? ids.get(key, -1) : -1;
+                int label = id >= 0 ? compact[id] : 0;
+                if (shorts) {
+                    s[p] = (short) label;
+                } else {
+                    f[p] = label;
+                }
+            }
+            planes[z] = shorts ? s : f;
+        });
+        for (Object p : planes) {
+            result.addSlice("", p);
+        }
+
+        ImagePlus relabeled = new ImagePlus(labels.getTitle(), result);
+        relabeled.setCalibration(calibration.copy());
+        return relabeled;
+    }
+
+    // Voxels of the same component point to the same root, background voxels to -1
+    static int[] components(Object[] pixels, int width, int height, int slabs) {
+        int depth = pixels.length;
+        int plane = width * height;
+        int[] parent = new int[plane * depth];
+
+        // Each slab is labelled independently, the slabs only touch their own part of the parent array
+        IntStream.range(0, slabs).parallel().forEach(slab -> {
+            int first = slab * depth / slabs;
+            int last = (slab + 1) * depth / slabs;
+            for (int z = first; z < last; z++) {
+                for (int y = 0, p = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++, p++) {
+                        int i = z * plane + p;
+                        int label = LabelAccumulators.label(pixels[z], p);
+                        if (label <= 0) {
+                            parent[i] = -1;
+                            continue;
+                        }
+                        parent[i] = i;
+                        if ((x > 0) && (LabelAccumulators.label(pixels[z], p - 1) == label)) {
+                            union(parent, i, i - 1);
+                        }
+                        if ((y > 0) && (LabelAccumulators.label(pixels[z], p - width) == label)) {
+                            union(parent, i, i - width);
+                        }
+                        if ((z > first) && (LabelAccumulators.label(pixels[z - 1], p) == label)) {
+                            union(parent, i, i - plane);
+                        }
+                    }
+                }
+            }
+        });
+
+        // The faces between the slabs are merged afterwards
+        for (int slab = 1; slab < slabs; slab++) {
+            int z = slab * depth / slabs;
+            for (int p = 0; p < plane; p++) {
+                int label = LabelAccumulators.label(pixels[z], p);
+                if ((label > 0) && (LabelAccumulators.label(pixels[z - 1], p) == label)) {
+                    union(parent, z * plane + p, (z - 1) * plane + p);
+                }
+            }
+        }
+
+        // Parents always point to lower indices, so a single forward pass resolves all the roots
+        for (int i = 0; i < parent.length; i++) {
+            if (parent[i] >= 0) {
+                parent[i] = parent[parent[i]];
+            }
+        }
+        return parent;
+    }
+
+    // Identifies the labels the relabeled objects were derived from
+    static long checksum(ImagePlus labels) {
+        ImageStack stack = labels.getStack();
+        CRC32 crc = new CRC32();
+        for (int z = 0; z < stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z + 1);
+            if (pixels instanceof byte[]) {
+                crc.update((byte[]) pixels);
+                continue;
+            }
+            ByteBuffer buffer;
+            if (pixels instanceof short[]) {
+                buffer = ByteBuffer.allocate(((short[]) pixels).length * 2);
+                buffer.asShortBuffer().put((short[]) pixels);
+            } else if (pixels instanceof float[]) {
+                buffer = ByteBuffer.allocate(((float[]) pixels).length * 4);
+                buffer.asFloatBuffer().put((float[]) pixels);
+            } else {
+                buffer = ByteBuffer.allocate(((int[]) pixels).length * 4);
+                buffer.asIntBuffer().put((int[]) pixels);
+            }
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a);
+        int rb = find(parent, b);
+        if (ra < rb) {
+            parent[rb] = ra;
+        } else if (rb < ra) {
+            parent[ra] = rb;
+        }
+    }
+}
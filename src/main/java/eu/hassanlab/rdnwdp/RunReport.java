@@ -0,0 +1,279 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import net.imagej.Dataset;
+import net.imglib2.util.Intervals;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+class RunReport {
+
+    private static final String[] HEADER = {"sample", "stage", "queueWait", "wallTime", "bytesRead", "bytesWritten",
+            "voxels", "failure"};
+
+    private String command;
+    private long started;
+    private long startedNanos;
+    private Queue<Stage> stages;
+
+    RunReport(String command) {
+        this.command = command;
+        started = System.currentTimeMillis();
+        startedNanos = System.nanoTime();
+        stages = new ConcurrentLinkedQueue<>();
+    }
+
+    interface StageBody {
+        void run(Stage stage) throws Exception;
+    }
+
+    Stage start(String sample, String stage) {
+        return start(sample, stage, System.nanoTime());
+    }
+
+    Stage start(String sample, String stage, long queued) {
+        return new Stage(sample, stage, queued);
+    }
+
+    void measure(String sample, String stage, StageBody body) throws Exception {
+        measure(sample, stage, System.nanoTime(), body);
+    }
+
+    void measure(String sample, String name, long queued, StageBody body) throws Exception {
+        Stage stage = start(sample, name, queued);
+        try {
+            body.run(stage);
+        } catch (Throwable t) {
+            stage.failed(t);
+            throw t;
+        } finally {
+            stage.done();
+        }
+    }
+
+    class Stage {
+        private String sample;
+        private String name;
+        private long queued;
+        private long started;
+        private long finished;
+        private long bytesRead;
+        private long bytesWritten;
+        private long voxels;
+        private String failure;
+
+        Stage(String sample, String name, long queued) {
+            this.sample = sample;
+            this.name = name;
+            this.queued = queued;
+            started = System.nanoTime();
+        }
+
+        Stage read(long bytes) {
+            bytesRead += bytes;
+            return this;
+        }
+
+        Stage read(ImagePlus image) {
+            return read(bytes(image));
+        }
+
+        // Asynchronous writes report their size from the writer threads, after the stage has finished
+        synchronized Stage written(long bytes) {
+            bytesWritten += bytes;
+            return this;
+        }
+
+        Stage written(ImagePlus image) {
+            return written(bytes(image));
+        }
+
+        Stage voxels(long count) {
+            voxels += count;
+            return this;
+        }
+
+        void failed(Throwable t) {
+            failure = t.getClass().getSimpleName() + (t.getMessage() != null ? ": " + t.getMessage() : "");
+        }
+
+        void done() {
+            finished = System.nanoTime();
+            stages.add(this);
+        }
+
+        double queueWait() {
+            return (started - queued) / 1e9;
+        }
+
+        double wallTime() {
+            return (finished - started) / 1e9;
+        }
+    }
+
+    static long bytes(ImagePlus image) {
+        if (image == null) {
+            return 0;
+        }
+        return (long) image.getWidth() * image.getHeight() * image.getStackSize() * image.getBytesPerPixel();
+    }
+
+    static long bytes(Dataset image) {
+        if (image == null) {
+            return 0;
+        }
+        return Intervals.numElements(image) * image.getType().getBitsPerPixel() / 8;
+    }
+
+    static long voxels(ImagePlus image) {
+        if (image == null) {
+            return 0;
+        }
+        return (long) image.getWidth() * image.getHeight() * image.getNSlices();
+    }
+
+    static long bytes(File file) {
+        return file.isFile() ? file.length() : 0;
+    }
+
+    void save(File file, LogService logService) {
+        if (file == null) {
+            return;
+        }
+        try {
+            save(file);
+            logService.log(LogLevel.INFO, "Run report saved to " + file);
+        } catch (IOException e) {
+            logService.log(LogLevel.WARN, "Writing run report failed!", e);
+        }
+    }
+
+    void save(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".csv")) {
+            saveCSV(file);
+        } else {
+            saveJSON(file);
+        }
+    }
+
+    private void saveCSV(File file) throws IOException {
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(file), CSVFormat.RFC4180.withHeader(HEADER))) {
+            for (Stage stage : stages) {
+                printer.printRecord(stage.sample, stage.name, stage.queueWait(), stage.wallTime(), stage.bytesRead,
+                        stage.bytesWritten, stage.voxels, stage.failure);
+            }
+        }
+    }
+
+    private void saveJSON(File file) throws IOException {
+        Map<String, Totals> totals = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            totals.computeIfAbsent(stage.name, name -> new Totals()).add(stage);
+        }
+
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("{");
+            out.println("  \"command\": " + quote(command) + ",");
+            out.println("  \"started\": " + started + ",");
+            out.println("  \"wallTime\": " + (System.nanoTime() - startedNanos) / 1e9 + ",");
+            out.println("  \"summary\": {");
+            Iterator<Map.Entry<String, Totals>> it = totals.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Totals> entry = it.next();
+                Totals total = entry.getValue();
+                out.print("    " + quote(entry.getKey()) + ": {"
+                        + "\"count\": " + total.count
+                        + ", \"failures\": " + total.failures
+                        + ", \"queueWait\": " + total.queueWait
+                        + ", \"wallTime\": " + total.wallTime
+                        + ", \"bytesRead\": " + total.bytesRead
+                        + ", \"bytesWritten\": " + total.bytesWritten
+                        + ", \"voxels\": " + total.voxels
+                        + ", \"voxelsPerSecond\": " + (total.wallTime > 0 ? total.voxels / total.wallTime : 0)
+                        + "}");
+                out.println(it.hasNext() ? "," : "");
+            }
+            out.println("  },");
+            out.println("  \"stages\": [");
+            Iterator<Stage> st = stages.iterator();
+            while (st.hasNext()) {
+                Stage stage = st.next();
+                out.print("    {\"sample\": " + quote(stage.sample)
+                        + ", \"stage\": " + quote(stage.name)
+                        + ", \"queueWait\": " + stage.queueWait()
+                        + ", \"wallTime\": " + stage.wallTime()
+                        + ", \"bytesRead\": " + stage.bytesRead
+                        + ", \"bytesWritten\": " + stage.bytesWritten
+                        + ", \"voxels\": " + stage.voxels
+                        + ", \"failure\": " + quote(stage.failure)
+                        + "}");
+                out.println(st.hasNext() ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static class Totals {
+        private int count;
+        private int failures;
+        private double queueWait;
+        private double wallTime;
+        private long bytesRead;
+        private long bytesWritten;
+        private long voxels;
+
+        void add(Stage stage) {
+            count++;
+            failures += stage.failure != null ? 1 : 0;
+            queueWait += stage.queueWait();
+            wallTime += stage.wallTime();
+            bytesRead += stage.bytesRead;
+            bytesWritten += stage.bytesWritten;
+            voxels += stage.voxels;
+        }
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append("\"").toString();
+    }
+}
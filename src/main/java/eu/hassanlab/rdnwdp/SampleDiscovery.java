@@ -0,0 +1,140 @@
+package eu.hassanlab.rdnwdp;
+
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+
+class SampleDiscovery {
+
+    private Path root;
+    private LogService logService;
+    private int parallelism;
+    private List<Predicate<Path>> filters;
+
+    SampleDiscovery(File root, LogService logService) {
+        this.root = root.toPath();
+        this.logService = logService;
+        parallelism = IOPool.THREADS;
+        filters = new ArrayList<>();
+    }
+
+    SampleDiscovery extension(String extension) {
+        filters.add(path -> path.getFileName().toString().endsWith(extension));
+        return this;
+    }
+
+    SampleDiscovery contains(String text) {
+        if ((text != null) && (! text.isEmpty())) {
+            filters.add(path -> path.toString().contains(text));
+        }
+        return this;
+    }
+
+    SampleDiscovery glob(String glob) {
+        if ((glob != null) && (! glob.isEmpty())) {
+            PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + glob);
+            filters.add(path -> matcher.matches(root.relativize(path)));
+        }
+        return this;
+    }
+
+    SampleDiscovery regex(String regex) {
+        if ((regex != null) && (! regex.isEmpty())) {
+            Pattern pattern = Pattern.compile(regex);
+            filters.add(path -> pattern.matcher(root.relativize(path).toString()).matches());
+        }
+        return this;
+    }
+
+    SampleDiscovery parallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    int stream(Consumer<File> consumer) {
+        AtomicInteger found = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryWalker(root, path -> {
+                found.incrementAndGet();
+                consumer.accept(path.toFile());
+            }));
+        } finally {
+            pool.shutdown();
+        }
+        return found.get();
+    }
+
+    List<File> list() {
+        List<File> files = Collections.synchronizedList(new ArrayList<>());
+        stream(files::add);
+        files.sort(Comparator.naturalOrder());
+        return files;
+    }
+
+    private boolean matches(Path path) {
+        for (Predicate<Path> filter : filters) {
+            if (! filter.test(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class DirectoryWalker extends RecursiveAction {
+
+        private Path directory;
+        private Consumer<Path> consumer;
+
+        DirectoryWalker(Path directory, Consumer<Path> consumer) {
+            this.directory = directory;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryWalker> subdirectories = new ArrayList<>();
+            try {
+                // Entries are visited with the attributes read while listing, without another stat per file
+                Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        // Hidden entries are skipped, including temporary files of writes in progress
+                        if (file.getFileName().toString().startsWith(".")) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        if (attributes.isDirectory()) {
+                            DirectoryWalker walker = new DirectoryWalker(file, consumer);
+                            walker.fork();
+                            subdirectories.add(walker);
+                        } else if (attributes.isRegularFile() && matches(file)) {
+                            consumer.accept(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        logService.log(LogLevel.WARN, "Error when walking path " + file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                logService.log(LogLevel.WARN, "Error when walking path " + directory);
+            }
+            subdirectories.forEach(RecursiveAction::join);
+        }
+    }
+}
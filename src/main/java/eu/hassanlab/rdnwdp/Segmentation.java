@@ -0,0 +1,248 @@
+package eu.hassanlab.rdnwdp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.Duplicator;
+import ij.plugin.GaussianBlur3D;
+import ij.process.ByteProcessor;
+import ij.process.StackConverter;
+import mcib3d.image3d.processing.FastFilters3D;
+import mcib3d.image3d.regionGrowing.Watershed3D;
+import net.imagej.ImageJ;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.LoggerFactory;
+import sc.fiji.hdf5.HDF5ImageJ;
+
+import java.io.File;
+import java.util.concurrent.*;
+
+
+@Plugin(type = Command.class, menuPath = "Plugins>RDN-WDP>Segmentation")
+public class Segmentation implements Command {
+
+    @Parameter
+    private LogService logService;
+
+    @Parameter(label = "Input folder", style = "directory")
+    private File inputFolder;
+
+    @Parameter(label = "Segmentation dataset")
+    private String segmentationDataset = "/weka/pmap1";
+
+    @Parameter(label = "Objects dataset (output)")
+    private String objectsDataset = "/segmentation/objects";
+
+    @Parameter(label = "DoG sigma")
+    private int sigma = 8;
+
+    @Parameter(label = "DoG ratio")
+    private float div = 1.5f;
+
+    @Parameter(label = "Local maxima radius")
+    private int radius = 3;
+
+    @Parameter(label = "Probability threshold")
+    private float thresh = 0.2f;
+
+    @Parameter(label = "Maxima cutoff")
+    private float cutoff = 0.0f;
+
+    @Parameter(label = "Save intermediate datasets")
+    private boolean saveIntermediate = false;
+
+    @Parameter(label = "Number of threads", required = false)
+    private Integer threads;
+
+    @Parameter(label = "Run report (.json or .csv)", required = false)
+    private File reportFile;
+
+    private RunReport report = new RunReport("Segmentation");
+    private AsyncWriter writer;
+
+    @Override
+    public void run() {
+        report = new RunReport("Segmentation");
+        if (threads == null) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<Object> ecs = new ExecutorCompletionService<>(pool);
+        writer = new AsyncWriter(logService);
+
+        int submitted = new SampleDiscovery(inputFolder, logService).extension(".h5").stream(file ->
+                ecs.submit(new ImageSegmenter(file)));
+        while (submitted > 0) {
+            try {
+                ecs.take().get();
+            } catch (Exception e) {
+                logService.log(LogLevel.WARN, "One of the segmentation threads failed!", e);
+            }
+            submitted--;
+        }
+
+        pool.shutdown();
+        writer.close();
+        report.save(reportFile, logService);
+    }
+
+    ImagePlus segment(ImagePlus pmap) {
+        ImagePlus dog = dog(pmap);
+        ImagePlus mask = threshold(pmap, thresh);
+        ImagePlus maxima = maxima(dog);
+        dog.close();
+        ImagePlus watershed = watershed(mask, maxima);
+        mask.close();
+        maxima.close();
+        return watershed;
+    }
+
+    class ImageSegmenter implements Callable<Object> {
+
+        private File file;
+        private long queued;
+        private ImagePlus pmap;
+        private ImagePlus watershed;
+
+        ImageSegmenter(File file) {
+            this.file = file;
+            queued = System.nanoTime();
+        }
+
+        @Override
+        public Object call() throws Exception {
+            String sample = file.getName();
+            logService.log(LogLevel.INFO, "Segmenting " + file.getPath());
+            writer.begin(file);
+            report.measure(sample, "read", queued, stage -> {
+                pmap = HDF5ImageJ.hdf5read(file.getPath(), segmentationDataset, "zyx");
+                stage.read(pmap);
+            });
+            report.measure(sample, "segment", stage -> {
+                segmentImage();
+                stage.voxels(RunReport.voxels(pmap));
+            });
+            pmap.close();
+            pmap = null;
+
+            report.measure(sample, "write", stage -> {
+                stage.written(watershed);
+                writer.hdf5(file, watershed, objectsDataset).thenRun(() ->
+                        logService.log(LogLevel.INFO, "Objects saved to " + file.getPath() + ":" + objectsDataset));
+            });
+            watershed = null;
+            writer.commit(file);
+
+            return this;
+        }
+
+        private void segmentImage() {
+            if (saveIntermediate) {
+                // Intermediate images are handed to the writer only once they are no longer needed
+                ImagePlus dog = dog(pmap);
+                ImagePlus mask = threshold(pmap, thresh);
+                ImagePlus maxima = maxima(dog);
+                writer.hdf5(file, dog, "/watershed/dog");
+                watershed = watershed(mask, maxima);
+                writer.hdf5(file, mask, "/watershed/mask");
+                writer.hdf5(file, maxima, "/watershed/maxima");
+            } else {
+                watershed = segment(pmap);
+            }
+        }
+    }
+
+    private ImagePlus dog(ImagePlus image) {
+        ImagePlus low = toFloat(image);
+        ImagePlus high = toFloat(image);
+        GaussianBlur3D.blur(low, sigma / div, sigma / div, sigma / div);
+        GaussianBlur3D.blur(high, sigma, sigma, sigma);
+
+        ImageStack lowStack = low.getStack();
+        ImageStack highStack = high.getStack();
+        for (int n = 1; n <= lowStack.getSize(); n++) {
+            float[] l = (float[]) lowStack.getPixels(n);
+            float[] h = (float[]) highStack.getPixels(n);
+            for (int i = 0; i < l.length; i++) {
+                l[i] -= h[i];
+            }
+        }
+        high.close();
+        low.setTitle("dog");
+        low.copyScale(image);
+
+        return low;
+    }
+
+    private ImagePlus toFloat(ImagePlus image) {
+        ImagePlus copy = new Duplicator().run(image);
+        if (copy.getType() != ImagePlus.GRAY32) {
+            new StackConverter(copy).convertToGray32();
+        }
+        return copy;
+    }
+
+    private ImagePlus threshold(ImagePlus image, float value) {
+        ImageStack stack = image.getStack();
+        ImageStack result = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int n = 1; n <= stack.getSize(); n++) {
+            float[] src = (float[]) stack.getProcessor(n).convertToFloat().getPixels();
+            byte[] dst = new byte[src.length];
+            for (int i = 0; i < src.length; i++) {
+                dst[i] = (byte) (src[i] > value ? 255 : 0);
+            }
+            result.addSlice(new ByteProcessor(stack.getWidth(), stack.getHeight(), dst));
+        }
+        ImagePlus mask = new ImagePlus("mask", result);
+        mask.copyScale(image);
+        return mask;
+    }
+
+    private ImagePlus maxima(ImagePlus dog) {
+        ImageStack filtered = FastFilters3D.filterImageStack(dog.getImageStack(), FastFilters3D.MAXLOCAL,
+                radius, radius, radius, threads, false);
+        ImagePlus maxima = new ImagePlus("maxima", filtered);
+        ImagePlus seeds = threshold(maxima, cutoff);
+        seeds.copyScale(dog);
+        maxima.close();
+        return seeds;
+    }
+
+    private ImagePlus watershed(ImagePlus mask, ImagePlus seeds) {
+        Watershed3D water = new Watershed3D(mask.getImageStack(), seeds.getImageStack(), 1.0, 1);
+        water.setLabelSeeds(true);
+        ImagePlus watershed = water.getWatershedImage3D().getImagePlus();
+        watershed.copyScale(mask);
+        return watershed;
+    }
+
+    public static void main(String... args) {
+        Logger root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+
+        final ImageJ ij = new ImageJ();
+        ij.launch(args);
+
+        int received = 0;
+        boolean errors = false;
+
+        while(received < 1 && !errors) {
+            Future future = ij.command().run(Segmentation.class, true);
+            try {
+                future.get();
+                received++;
+            }
+            catch(Exception e) {
+                errors = true;
+            }
+        }
+
+        System.exit(0);
+    }
+}
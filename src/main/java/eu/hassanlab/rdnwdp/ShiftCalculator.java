@@ -65,7 +65,7 @@ public class ShiftCalculator implements Command {
         logService.log(LogLevel.INFO,"Final result: " + result);
     }
 
-    private Alignment align(Dataset reference, Dataset sample) {
+    Alignment align(Dataset reference, Dataset sample) {
         final FloatArray2DSIFT.Param siftParam = new FloatArray2DSIFT.Param();
         final FloatArray2DSIFT sift = new FloatArray2DSIFT(siftParam);
         final SIFT ijSIFT = new SIFT(sift);
@@ -75,8 +75,8 @@ public class ShiftCalculator implements Command {
 
         RankFilters filter = new RankFilters();
 
-        ImagePlus imp1 = convertService.convert(reference, ImagePlus.class);
-        ImagePlus imp2 = convertService.convert(sample, ImagePlus.class);
+        ImagePlus imp1 = ImageBridge.toImagePlus(reference, convertService);
+        ImagePlus imp2 = ImageBridge.toImagePlus(sample, convertService);
 
         int maxslices = imp1.getNSlices();
 
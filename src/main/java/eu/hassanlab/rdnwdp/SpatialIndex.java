@@ -0,0 +1,190 @@
+package eu.hassanlab.rdnwdp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+class SpatialIndex {
+
+    private static final int MAGIC = 0x52444e49;
+
+    private double[][] points;
+    private double cellSize;
+    private double[] origin;
+    private int[] cells;
+    private int[] start;
+    private int[] order;
+
+    SpatialIndex(double[] x, double[] y, double[] z, double cellSize) {
+        points = new double[][] {x, y, z};
+        this.cellSize = cellSize;
+        origin = new double[3];
+        cells = new int[3];
+        int n = x.length;
+        for (int d = 0; d < 3; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                min = Math.min(min, points[d][i]);
+                max = Math.max(max, points[d][i]);
+            }
+            origin[d] = n > 0 ? min : 0;
+            cells[d] = n > 0 ? (int) Math.floor((max - min) / cellSize) + 1 : 1;
+        }
+
+        // Points are bucketed with a counting sort, so each cell is a contiguous range of the order array
+        int[] cell = new int[n];
+        start = new int[cells[0] * cells[1] * cells[2] + 1];
+        for (int i = 0; i < n; i++) {
+            cell[i] = cell(i);
+            start[cell[i] + 1]++;
+        }
+        for (int c = 1; c < start.length; c++) {
+            start[c] += start[c - 1];
+        }
+        order = new int[n];
+        int[] next = start.clone();
+        for (int i = 0; i < n; i++) {
+            order[next[cell[i]]++] = i;
+        }
+    }
+
+    private SpatialIndex() {}
+
+    int size() {
+        return order.length;
+    }
+
+    private int coordinate(double value, int d) {
+        return Math.min(cells[d] - 1, Math.max(0, (int) Math.floor((value - origin[d]) / cellSize)));
+    }
+
+    private int cell(int i) {
+        return (coordinate(points[2][i], 2) * cells[1] + coordinate(points[1][i], 1)) * cells[0] +
+                coordinate(points[0][i], 0);
+    }
+
+    private double distance2(int i, int j) {
+        double dx = points[0][i] - points[0][j];
+        double dy = points[1][i] - points[1][j];
+        double dz = points[2][i] - points[2][j];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    double nearestDistance(int i) {
+        if (order.length < 2) {
+            return Double.NaN;
+        }
+        int[] c = {coordinate(points[0][i], 0), coordinate(points[1][i], 1), coordinate(points[2][i], 2)};
+        int maxRing = Math.max(cells[0], Math.max(cells[1], cells[2]));
+        double best = Double.POSITIVE_INFINITY;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // Points in further rings are at least this far away
+            double bound = (ring - 1) * cellSize;
+            if ((ring > 0) && (bound > 0) && (bound * bound > best)) {
+                break;
+            }
+            for (int z = c[2] - ring; z <= c[2] + ring; z++) {
+                for (int y = c[1] - ring; y <= c[1] + ring; y++) {
+                    for (int x = c[0] - ring; x <= c[0] + ring; x++) {
+                        if ((Math.abs(x - c[0]) != ring) && (Math.abs(y - c[1]) != ring) &&
+                                (Math.abs(z - c[2]) != ring)) {
+                            continue;
+                        }
+                        if ((x < 0) || (y < 0) || (z < 0) || (x >= cells[0]) || (y >= cells[1]) || (z >= cells[2])) {
+                            continue;
+                        }
+                        int cell = (z * cells[1] + y) * cells[0] + x;
+                        for (int p = start[cell]; p < start[cell + 1]; p++) {
+                            if (order[p] != i) {
+                                best = Math.min(best, distance2(i, order[p]));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return Math.sqrt(best);
+    }
+
+    int countWithin(int i, double radius) {
+        int reach = (int) Math.ceil(radius / cellSize);
+        double radius2 = radius * radius;
+        int[] c = {coordinate(points[0][i], 0), coordinate(points[1][i], 1), coordinate(points[2][i], 2)};
+        int count = 0;
+        for (int z = Math.max(0, c[2] - reach); z <= Math.min(cells[2] - 1, c[2] + reach); z++) {
+            for (int y = Math.max(0, c[1] - reach); y <= Math.min(cells[1] - 1, c[1] + reach); y++) {
+                int row = (z * cells[1] + y) * cells[0];
+                int first = start[row + Math.max(0, c[0] - reach)];
+                int last = start[row + Math.min(cells[0] - 1, c[0] + reach) + 1];
+                for (int p = first; p < last; p++) {
+                    if ((order[p] != i) && (distance2(i, order[p]) <= radius2)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(order.length);
+            out.writeDouble(cellSize);
+            for (int d = 0; d < 3; d++) {
+                out.writeDouble(origin[d]);
+                out.writeInt(cells[d]);
+            }
+            for (int value : start) {
+                out.writeInt(value);
+            }
+            for (int value : order) {
+                out.writeInt(value);
+            }
+            for (double[] coordinates : points) {
+                for (double value : coordinates) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+    }
+
+    static SpatialIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a spatial index file " + file);
+            }
+            SpatialIndex index = new SpatialIndex();
+            int n = in.readInt();
+            index.cellSize = in.readDouble();
+            index.origin = new double[3];
+            index.cells = new int[3];
+            for (int d = 0; d < 3; d++) {
+                index.origin[d] = in.readDouble();
+                index.cells[d] = in.readInt();
+            }
+            index.start = new int[index.cells[0] * index.cells[1] * index.cells[2] + 1];
+            for (int c = 0; c < index.start.length; c++) {
+                index.start[c] = in.readInt();
+            }
+            index.order = new int[n];
+            for (int p = 0; p < n; p++) {
+                index.order[p] = in.readInt();
+            }
+            index.points = new double[3][n];
+            for (int d = 0; d < 3; d++) {
+                for (int i = 0; i < n; i++) {
+                    index.points[d][i] = in.readDouble();
+                }
+            }
+            return index;
+        }
+    }
+}
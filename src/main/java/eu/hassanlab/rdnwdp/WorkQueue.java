@@ -0,0 +1,272 @@
+package eu.hassanlab.rdnwdp;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+class WorkQueue {
+
+    private static final long LEASE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long HEARTBEAT = TimeUnit.MINUTES.toMillis(1);
+    private static final String LEASE = ".lease";
+    private static final String DONE = ".done";
+    private static final String FAILED = ".failed";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String[] HEADER = {"sample", "status", "worker", "wallTime", "finished", "message", "attempts"};
+
+    private Path directory;
+    private Path root;
+    private LogService logService;
+    private String worker;
+    private Set<Path> leases;
+    private ScheduledExecutorService heartbeat;
+
+    WorkQueue(File workDirectory, File inputFolder, String command, LogService logService) {
+        this.logService = logService;
+        if (workDirectory == null) {
+            return;
+        }
+        directory = new File(workDirectory, command).toPath();
+        root = inputFolder.toPath().toAbsolutePath().normalize();
+        worker = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        leases = ConcurrentHashMap.newKeySet();
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create work directory " + directory, e);
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WorkQueue heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(this::renew, HEARTBEAT, HEARTBEAT, TimeUnit.MILLISECONDS);
+        logService.log(LogLevel.INFO, "Worker " + worker + " using work directory " + directory);
+    }
+
+    boolean isShared() {
+        return directory != null;
+    }
+
+    <T> Callable<T> task(File sample, Callable<T> task) {
+        if (! isShared()) {
+            return task;
+        }
+        String key = key(sample);
+        return () -> {
+            if (! claim(key)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            try {
+                T result = task.call();
+                complete(key, "done", start, null);
+                return result;
+            } catch (Exception e) {
+                try {
+                    complete(key, "failed", start, e.getClass().getSimpleName() + ": " + e.getMessage());
+                } catch (Exception suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        };
+    }
+
+    private String key(File sample) {
+        Path path = sample.toPath().toAbsolutePath().normalize();
+        String name = path.startsWith(root) ? root.relativize(path).toString() : path.toString();
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean claim(String key) throws IOException {
+        if (Files.exists(directory.resolve(key + DONE))) {
+            return false;
+        }
+        // Failed samples are retried by any worker until they failed too many times
+        if (attempts(key) >= MAX_ATTEMPTS) {
+            return false;
+        }
+        Path lease = directory.resolve(key + LEASE);
+        try {
+            Files.write(lease, worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            if (! steal(lease)) {
+                return false;
+            }
+            return claim(key);
+        }
+        if (Files.exists(directory.resolve(key + DONE))) {
+            Files.deleteIfExists(lease);
+            return false;
+        }
+        leases.add(lease);
+        logService.log(LogLevel.INFO, "Worker " + worker + " claimed " + decode(key));
+        return true;
+    }
+
+    private boolean steal(Path lease) {
+        Path stale = lease.resolveSibling(lease.getFileName() + "." + worker);
+        try {
+            if (! expired(lease)) {
+                return false;
+            }
+            // Only one worker can move the expired lease away, the others will fail and retry claiming
+            Files.move(lease, stale, StandardCopyOption.ATOMIC_MOVE);
+            if (! expired(stale)) {
+                Files.move(stale, lease, StandardCopyOption.ATOMIC_MOVE);
+                return false;
+            }
+            logService.log(LogLevel.WARN, "Lease " + lease.getFileName() + " of " +
+                    new String(Files.readAllBytes(stale), StandardCharsets.UTF_8) + " expired");
+            Files.delete(stale);
+            return true;
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (IOException e) {
+            logService.log(LogLevel.WARN, "Failed to take over lease " + lease, e);
+            return false;
+        }
+    }
+
+    private boolean expired(Path lease) throws IOException {
+        return System.currentTimeMillis() - Files.getLastModifiedTime(lease).toMillis() > LEASE_TIMEOUT;
+    }
+
+    private void renew() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Path lease : leases) {
+            try {
+                if (! worker.equals(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8))) {
+                    logService.log(LogLevel.WARN, "Lease " + lease.getFileName() + " was taken over by another worker");
+                    leases.remove(lease);
+                    continue;
+                }
+                Files.setLastModifiedTime(lease, now);
+            } catch (IOException e) {
+                logService.log(LogLevel.WARN, "Failed to renew lease " + lease, e);
+            }
+        }
+    }
+
+    private int attempts(String key) throws IOException {
+        Path failed = directory.resolve(key + FAILED);
+        if (! Files.exists(failed)) {
+            return 0;
+        }
+        List<String> record = read(failed);
+        try {
+            return record.size() > 6 ? Integer.parseInt(record.get(6)) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static List<String> read(Path marker) throws IOException {
+        List<String> record = new ArrayList<>();
+        try (Reader in = Files.newBufferedReader(marker)) {
+            CSVFormat.RFC4180.parse(in).forEach(r -> r.forEach(record::add));
+        }
+        return record;
+    }
+
+    private void complete(String key, String status, long start, String message) throws IOException {
+        Path lease = directory.resolve(key + LEASE);
+        boolean success = status.equals("done");
+        Path marker = directory.resolve(key + (success ? DONE : FAILED));
+        Path temp = directory.resolve(key + (success ? DONE : FAILED) + "." + worker);
+        int attempts = attempts(key) + 1;
+        try (CSVPrinter printer = new CSVPrinter(Files.newBufferedWriter(temp), CSVFormat.RFC4180)) {
+            printer.printRecord(decode(key), status, worker, (System.nanoTime() - start) / 1e9,
+                    System.currentTimeMillis(), message, attempts);
+        }
+        Files.move(temp, marker, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (success) {
+            Files.deleteIfExists(directory.resolve(key + FAILED));
+        }
+        leases.remove(lease);
+        // The lease is only removed if it is still ours, a worker which took it over keeps it
+        try {
+            if (worker.equals(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8))) {
+                Files.deleteIfExists(lease);
+            }
+        } catch (NoSuchFileException e) {
+            // Already removed
+        }
+    }
+
+    void close() {
+        if (! isShared()) {
+            return;
+        }
+        heartbeat.shutdownNow();
+
+        int done = 0;
+        int failed = 0;
+        int pending = 0;
+        List<List<String>> records = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(FAILED) &&
+                        Files.exists(directory.resolve(name.substring(0, name.length() - FAILED.length()) + DONE))) {
+                    // Finished by another worker after failing here
+                    continue;
+                }
+                if (name.endsWith(DONE) || name.endsWith(FAILED)) {
+                    List<String> record = read(entry);
+                    records.add(record);
+                    if ((record.size() > 1) && record.get(1).equals("done")) {
+                        done++;
+                    } else {
+                        failed++;
+                    }
+                } else if (name.endsWith(LEASE)) {
+                    pending++;
+                }
+            }
+            records.sort(Comparator.comparing(record -> record.isEmpty() ? "" : record.get(0)));
+
+            Path report = directory.resolve("completion.csv");
+            Path temp = directory.resolve("completion.csv." + worker);
+            try (Writer out = Files.newBufferedWriter(temp);
+                 CSVPrinter printer = new CSVPrinter(out, CSVFormat.RFC4180.withHeader(HEADER))) {
+                printer.printRecords(records);
+            }
+            Files.move(temp, report, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            logService.log(LogLevel.INFO, "Work queue " + directory + ": " + done + " done, " + failed + " failed, " +
+                    pending + " in progress");
+        } catch (IOException e) {
+            logService.log(LogLevel.WARN, "Writing completion report failed!", e);
+        }
+    }
+
+    private static String decode(String key) {
+        try {
+            return URLDecoder.decode(key, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
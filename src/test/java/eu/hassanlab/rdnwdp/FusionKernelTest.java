@@ -0,0 +1,157 @@
+package eu.hassanlab.rdnwdp;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.Axes;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.interpolation.randomaccess.FloorInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Scale3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class FusionKernelTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+    private static final int DEPTH = 10;
+
+    private Context context;
+    private DatasetService datasetService;
+
+    @Before
+    public void setUp() {
+        context = new Context(DatasetService.class);
+        datasetService = context.getService(DatasetService.class);
+    }
+
+    @After
+    public void tearDown() {
+        context.dispose();
+    }
+
+    private static void fill(Img<UnsignedShortType> img, int seed) {
+        int value = seed;
+        for (UnsignedShortType pixel : img) {
+            value = (value * 31 + 7) % 65521;
+            pixel.set(value);
+        }
+    }
+
+    private Dataset planar(String name, int width, int height, int depth, int seed) {
+        Img<UnsignedShortType> img = PlanarImgs.unsignedShorts(width, height, depth);
+        fill(img, seed);
+        return datasetService.create(new ImgPlus<>(img, name, new AxisType[] {Axes.X, Axes.Y, Axes.Z}));
+    }
+
+    // Sources of the same size, downsampled in xy and in z, and an array image with two channels
+    private List<Dataset> sources() {
+        List<Dataset> sources = new ArrayList<>();
+        sources.add(planar("same", WIDTH, HEIGHT, DEPTH, 1));
+        sources.add(planar("xy", WIDTH / 2, HEIGHT / 2, DEPTH, 2));
+        sources.add(planar("z", WIDTH, HEIGHT, DEPTH / 2, 3));
+        Img<UnsignedShortType> channels = ArrayImgs.unsignedShorts(WIDTH, HEIGHT, DEPTH, 2);
+        fill(channels, 4);
+        sources.add(datasetService.create(new ImgPlus<>(channels, "channels",
+                new AxisType[] {Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL})));
+        return sources;
+    }
+
+    // The generic path of PreProcessing.getAlignedImage: floor scaling to the reference, zero outside, shifted in z
+    @SuppressWarnings("unchecked")
+    private static RandomAccessibleInterval<UnsignedShortType> expected(Dataset reference, Dataset source,
+                                                                        long channel, long zshift, long zsmax,
+                                                                        long zslices) {
+        RandomAccessibleInterval<UnsignedShortType> image =
+                (RandomAccessibleInterval<UnsignedShortType>) source.getImgPlus().getImg();
+        int c = source.dimensionIndex(Axes.CHANNEL);
+        if (c >= 0) {
+            image = Views.hyperSlice(image, c, channel);
+        }
+        double[] scales = new double[3];
+        long[] dims = new long[3];
+        for (int d = 0; d < 3; d++) {
+            dims[d] = reference.dimension(d);
+            scales[d] = (double) dims[d] / image.dimension(d);
+        }
+        RandomAccessibleInterval<UnsignedShortType> scaled = Views.interval(Views.raster(RealViews.affine(
+                Views.interpolate(Views.extendMirrorSingle(image), new FloorInterpolatorFactory<UnsignedShortType>()),
+                new Scale3D(scales[0], scales[1], scales[2]))), new FinalInterval(dims));
+        long zmin = zshift - zsmax;
+        return Views.offsetInterval(Views.extendZero(scaled), new FinalInterval(
+                new long[] {0, 0, zmin}, new long[] {dims[0] - 1, dims[1] - 1, zmin + zslices}));
+    }
+
+    private void check(long[] zshifts, OffHeapStorage storage) {
+        Dataset reference = planar("reference", WIDTH, HEIGHT, DEPTH, 0);
+        List<Dataset> sources = sources();
+        assertTrue(FusionKernel.supports(reference, sources));
+        FusionKernel kernel = new FusionKernel(reference, sources);
+        assertEquals(zshifts.length, kernel.size());
+
+        long zsmin = Math.min(0, Arrays.stream(zshifts).min().getAsLong());
+        long zsmax = Math.max(0, Arrays.stream(zshifts).max().getAsLong());
+        long zslices = reference.max(2) + zsmax - zsmin;
+        @SuppressWarnings("unchecked")
+        ImgPlus<UnsignedShortType> fused = kernel.fuse(zshifts, zsmax, zslices + 1, storage);
+        assertArrayEquals(new long[] {WIDTH, HEIGHT, zslices + 1, zshifts.length},
+                new long[] {fused.dimension(0), fused.dimension(1), fused.dimension(2), fused.dimension(3)});
+
+        RandomAccess<UnsignedShortType> access = fused.randomAccess();
+        int k = 0;
+        for (Dataset source : sources) {
+            int c = source.dimensionIndex(Axes.CHANNEL);
+            for (long channel = 0; channel < (c >= 0 ? source.dimension(c) : 1); channel++, k++) {
+                Cursor<UnsignedShortType> cursor =
+                        Views.flatIterable(expected(reference, source, channel, zshifts[k], zsmax, zslices)).cursor();
+                while (cursor.hasNext()) {
+                    cursor.fwd();
+                    access.setPosition(new long[] {cursor.getLongPosition(0), cursor.getLongPosition(1),
+                            cursor.getLongPosition(2), k});
+                    assertEquals(source.getName() + " channel " + channel + " at " + Arrays.toString(
+                            new long[] {cursor.getLongPosition(0), cursor.getLongPosition(1),
+                                    cursor.getLongPosition(2)}), cursor.get().get(), access.get().get());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesViewsOnHeap() {
+        check(new long[] {0, 2, -1, 0, 3}, null);
+    }
+
+    @Test
+    public void matchesViewsWithoutShifts() {
+        check(new long[5], null);
+    }
+
+    @Test
+    public void matchesViewsOffHeap() {
+        OffHeapStorage storage = OffHeapStorage.create(OffHeapStorage.DIRECT, null);
+        try {
+            check(new long[] {0, 2, -1, 0, 3}, storage);
+        } finally {
+            storage.close();
+        }
+    }
+}
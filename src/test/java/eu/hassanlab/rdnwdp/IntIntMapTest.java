@@ -0,0 +1,48 @@
+package eu.hassanlab.rdnwdp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+public class IntIntMapTest {
+
+    @Test
+    public void keepsAllEntriesWhileGrowing() {
+        IntIntMap map = new IntIntMap(2);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Consecutive and scattered keys, including negative ones
+            int key = (i % 2 == 0) ? i : random.nextInt() | 1;
+            if (key == Integer.MIN_VALUE) {
+                continue;
+            }
+            map.put(key, i);
+            expected.put(key, i);
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey(), -1));
+        }
+    }
+
+    @Test
+    public void replacesValuesAndReportsMissingKeys() {
+        IntIntMap map = new IntIntMap();
+        map.put(5, 1);
+        map.put(5, 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(5, -1));
+        assertEquals(-1, map.get(6, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheReservedKey() {
+        new IntIntMap().put(Integer.MIN_VALUE, 0);
+    }
+}
@@ -0,0 +1,157 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+public class LabelAccumulatorsTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 32;
+    private static final int DEPTH = 12;
+    private static final int OBJECTS = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Random boxes, the label of object k is 3k; the removed object is skipped, the grown one is one voxel wider
+    private static ImagePlus labels(long seed, int removed, int grown, boolean added) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        short[][] planes = new short[DEPTH][WIDTH * HEIGHT];
+        for (short[] plane : planes) {
+            stack.addSlice("", plane);
+        }
+        for (int k = 1; k <= OBJECTS + 1; k++) {
+            int x0 = random.nextInt(WIDTH - 6);
+            int y0 = random.nextInt(HEIGHT - 6);
+            int z0 = random.nextInt(DEPTH - 4);
+            int sx = 2 + random.nextInt(4) + (k == grown ? 1 : 0);
+            int sy = 2 + random.nextInt(4);
+            int sz = 1 + random.nextInt(3);
+            if ((k == removed) || ((k > OBJECTS) && (! added))) {
+                continue;
+            }
+            for (int z = z0; z < z0 + sz; z++) {
+                for (int y = y0; y < y0 + sy; y++) {
+                    for (int x = x0; x < x0 + sx; x++) {
+                        planes[z][y * WIDTH + x] = (short) (3 * k);
+                    }
+                }
+            }
+        }
+        return new ImagePlus("labels", stack);
+    }
+
+    private static Map<String, ImagePlus> channels(long seed) {
+        Random random = new Random(seed);
+        ImageStack shorts = new ImageStack(WIDTH, HEIGHT);
+        ImageStack floats = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] s = new short[WIDTH * HEIGHT];
+            float[] f = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < s.length; i++) {
+                s[i] = (short) random.nextInt(4000);
+                f[i] = random.nextFloat();
+            }
+            shorts.addSlice("", s);
+            floats.addSlice("", f);
+        }
+        Map<String, ImagePlus> channels = new LinkedHashMap<>();
+        channels.put("/aligned/channel0", new ImagePlus("shorts", shorts));
+        channels.put("/aligned/channel1", new ImagePlus("floats", floats));
+        return channels;
+    }
+
+    private static LabelAccumulators measure(ImagePlus labels, Map<String, ImagePlus> channels, int passes) {
+        LabelAccumulators accumulators = LabelAccumulators.measure(labels);
+        accumulators.setBackground(passes, 1, 99);
+        for (Map.Entry<String, ImagePlus> channel : channels.entrySet()) {
+            accumulators.addChannel(channel.getKey(), labels, channel.getValue());
+        }
+        return accumulators;
+    }
+
+    // Reads a block of a channel, as the hyperslab reader of the quantification does
+    private static ImagePlus block(ImagePlus image, long[] offset, int[] block) {
+        ImageStack stack = new ImageStack(block[2], block[1]);
+        for (int z = 0; z < block[0]; z++) {
+            Object source = image.getStack().getPixels((int) offset[0] + z + 1);
+            Object target = source instanceof float[] ? new float[block[1] * block[2]] : new short[block[1] * block[2]];
+            for (int y = 0; y < block[1]; y++) {
+                System.arraycopy(source, (int) ((offset[1] + y) * WIDTH + offset[2]), target, y * block[2], block[2]);
+            }
+            stack.addSlice("", target);
+        }
+        return new ImagePlus("block", stack);
+    }
+
+    private static void assertTablesEqual(ResultsTable expected, ResultsTable actual) {
+        assertEquals(expected.size(), actual.size());
+        assertArrayEquals(expected.getHeadings(), actual.getHeadings());
+        for (String heading : expected.getHeadings()) {
+            for (int row = 0; row < expected.size(); row++) {
+                assertEquals(heading + " " + row, expected.getValue(heading, row), actual.getValue(heading, row), 1e-9);
+            }
+        }
+    }
+
+    private LabelAccumulators reload(LabelAccumulators accumulators) throws IOException {
+        File file = folder.newFile();
+        accumulators.save(file);
+        return LabelAccumulators.load(file);
+    }
+
+    @Test
+    public void saveAndLoadKeepTheTable() throws IOException {
+        ImagePlus labels = labels(1, 0, 0, false);
+        LabelAccumulators accumulators = measure(labels, channels(2), 2);
+        LabelAccumulators loaded = reload(accumulators);
+        assertEquals(accumulators.size(), loaded.size());
+        assertEquals(accumulators.getChannels(), loaded.getChannels());
+        assertTablesEqual(accumulators.table(), loaded.table());
+    }
+
+    @Test
+    public void saveAndLoadWithoutBackgrounds() throws IOException {
+        ImagePlus labels = labels(3, 0, 0, false);
+        LabelAccumulators accumulators = measure(labels, channels(4), 0);
+        assertTablesEqual(accumulators.table(), reload(accumulators).table());
+    }
+
+    @Test
+    public void updateMatchesFullMeasure() throws IOException {
+        for (int passes : new int[] {0, 1, 3}) {
+            for (long seed = 0; seed < 5; seed++) {
+                Map<String, ImagePlus> channels = channels(100 + seed);
+                LabelAccumulators loaded = reload(measure(labels(seed, 0, 0, false), channels, passes));
+                loaded.setBackground(passes, 1, 99);
+
+                ImagePlus edited = labels(seed, 5 + (int) seed, 11 + (int) seed, seed % 2 == 0);
+                long[] read = {0};
+                LabelAccumulators updated = loaded.update(edited, (channel, offset, block) -> {
+                    read[0] += (long) block[0] * block[1] * block[2];
+                    return block(channels.get(channel), offset, block);
+                }, Collections.singleton(9));
+
+                assertTablesEqual(measure(edited, channels, passes).table(), updated.table());
+                // Only a few objects changed, so the blocks do not cover the channels
+                assertTrue("passes " + passes + " seed " + seed,
+                        read[0] < (long) channels.size() * WIDTH * HEIGHT * DEPTH);
+            }
+        }
+    }
+}
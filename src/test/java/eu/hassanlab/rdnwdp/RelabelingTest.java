@@ -0,0 +1,113 @@
+package eu.hassanlab.rdnwdp;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RelabelingTest {
+
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 5;
+    private static final int DEPTH = 9;
+
+    private static ImagePlus image(short[][] planes) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (short[] plane : planes) {
+            stack.addSlice("", plane);
+        }
+        return new ImagePlus("labels", stack);
+    }
+
+    private static int label(ImagePlus image, int x, int y, int z) {
+        return LabelAccumulators.label(image.getStack().getPixels(z + 1), y * WIDTH + x);
+    }
+
+    @Test
+    public void connectedComponentsSpanAllSlabs() {
+        short[][] planes = new short[DEPTH][WIDTH * HEIGHT];
+        // Two columns of label 7 only joined in the last plane, and a separate column of label 7
+        for (int z = 0; z < DEPTH; z++) {
+            planes[z][WIDTH + 1] = 7;
+            planes[z][WIDTH + 3] = 7;
+            planes[z][3 * WIDTH + 5] = 7;
+        }
+        planes[DEPTH - 1][WIDTH + 2] = 7;
+
+        Relabeling relabeling = new Relabeling(true, 0, 0, 0);
+        ImagePlus relabeled = relabeling.relabel(image(planes));
+
+        assertEquals(2, relabeling.getObjects());
+        assertEquals(0, relabeling.getRemoved());
+        int joined = label(relabeled, 1, 1, 0);
+        int separate = label(relabeled, 5, 3, 0);
+        assertTrue(joined > 0);
+        assertTrue(separate > 0);
+        assertNotEquals(joined, separate);
+        for (int z = 0; z < DEPTH; z++) {
+            assertEquals(joined, label(relabeled, 1, 1, z));
+            assertEquals(joined, label(relabeled, 3, 1, z));
+            assertEquals(separate, label(relabeled, 5, 3, z));
+        }
+    }
+
+    @Test
+    public void componentsAreMergedAcrossSlabs() {
+        short[][] planes = new short[DEPTH][WIDTH * HEIGHT];
+        // A U-shaped object whose arms only meet in the last plane, and a single voxel of the same label
+        for (int z = 0; z < DEPTH; z++) {
+            planes[z][WIDTH + 1] = 7;
+            planes[z][WIDTH + 3] = 7;
+        }
+        planes[DEPTH - 1][WIDTH + 2] = 7;
+        planes[0][3 * WIDTH + 5] = 7;
+
+        for (int slabs = 1; slabs <= DEPTH; slabs++) {
+            int[] roots = Relabeling.components(planes, WIDTH, HEIGHT, slabs);
+            int root = roots[WIDTH + 1];
+            assertTrue(root >= 0);
+            for (int z = 0; z < DEPTH; z++) {
+                int plane = z * WIDTH * HEIGHT;
+                assertEquals("slabs " + slabs, root, roots[plane + WIDTH + 1]);
+                assertEquals("slabs " + slabs, root, roots[plane + WIDTH + 3]);
+                assertEquals(-1, roots[plane]);
+            }
+            assertNotEquals(root, roots[3 * WIDTH + 5]);
+            assertTrue(roots[3 * WIDTH + 5] >= 0);
+        }
+    }
+
+    @Test
+    public void touchingLabelsStaySeparate() {
+        short[][] planes = new short[DEPTH][WIDTH * HEIGHT];
+        for (int z = 0; z < DEPTH; z++) {
+            planes[z][0] = 1;
+            planes[z][1] = 2;
+        }
+
+        Relabeling relabeling = new Relabeling(true, 0, 0, 0);
+        ImagePlus relabeled = relabeling.relabel(image(planes));
+
+        assertEquals(2, relabeling.getObjects());
+        assertNotEquals(label(relabeled, 0, 0, DEPTH - 1), label(relabeled, 1, 0, DEPTH - 1));
+    }
+
+    @Test
+    public void smallObjectsAreRemoved() {
+        short[][] planes = new short[DEPTH][WIDTH * HEIGHT];
+        planes[0][0] = 3;
+        for (int z = 0; z < DEPTH; z++) {
+            planes[z][WIDTH * HEIGHT - 1] = 9;
+        }
+
+        Relabeling relabeling = new Relabeling(false, 2, 0, 0);
+        ImagePlus relabeled = relabeling.relabel(image(planes));
+
+        assertEquals(1, relabeling.getObjects());
+        assertEquals(1, relabeling.getRemoved());
+        assertEquals(0, label(relabeled, 0, 0, 0));
+        assertEquals(1, label(relabeled, WIDTH - 1, HEIGHT - 1, 0));
+    }
+}
@@ -0,0 +1,108 @@
+package eu.hassanlab.rdnwdp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+public class SpatialIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static double[][] points(int n, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[3][n];
+        for (int i = 0; i < n; i++) {
+            // A dense cluster, a sparse cloud and a few isolated points far from everything
+            double scale = (i % 10 == 0) ? 500 : (i % 3 == 0) ? 50 : 5;
+            for (int d = 0; d < 3; d++) {
+                points[d][i] = random.nextDouble() * scale;
+            }
+        }
+        return points;
+    }
+
+    private static double nearest(double[][] points, int i) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < points[0].length; j++) {
+            if (j != i) {
+                best = Math.min(best, distance(points, i, j));
+            }
+        }
+        return best;
+    }
+
+    private static double distance(double[][] points, int i, int j) {
+        double dx = points[0][i] - points[0][j];
+        double dy = points[1][i] - points[1][j];
+        double dz = points[2][i] - points[2][j];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    @Test
+    public void nearestDistanceMatchesBruteForce() {
+        double[][] points = points(400, 1);
+        for (double cellSize : new double[] {2.5, 7, 40, 1000}) {
+            SpatialIndex index = new SpatialIndex(points[0], points[1], points[2], cellSize);
+            for (int i = 0; i < points[0].length; i++) {
+                assertEquals("cell size " + cellSize, nearest(points, i), index.nearestDistance(i), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void nearestDistanceOfIsolatedPoints() {
+        // The neighbours are many rings away from the first point and on the far side of the grid from the last
+        double[] x = {0, 100, 101, 102};
+        double[] y = {0, 0, 0, 0};
+        double[] z = {0, 0, 0, 100};
+        SpatialIndex index = new SpatialIndex(x, y, z, 1);
+        assertEquals(100, index.nearestDistance(0), 1e-9);
+        assertEquals(1, index.nearestDistance(1), 1e-9);
+        assertEquals(Math.sqrt(1 + 100 * 100), index.nearestDistance(3), 1e-9);
+    }
+
+    @Test
+    public void nearestDistanceNeedsTwoPoints() {
+        assertTrue(Double.isNaN(new SpatialIndex(new double[] {1}, new double[] {2}, new double[] {3}, 1)
+                .nearestDistance(0)));
+    }
+
+    @Test
+    public void countWithinMatchesBruteForce() {
+        double[][] points = points(300, 2);
+        SpatialIndex index = new SpatialIndex(points[0], points[1], points[2], 4);
+        for (double radius : new double[] {1, 4, 10, 60}) {
+            for (int i = 0; i < points[0].length; i++) {
+                int expected = 0;
+                for (int j = 0; j < points[0].length; j++) {
+                    if ((j != i) && (distance(points, i, j) <= radius)) {
+                        expected++;
+                    }
+                }
+                assertEquals("radius " + radius, expected, index.countWithin(i, radius));
+            }
+        }
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        double[][] points = points(200, 3);
+        SpatialIndex index = new SpatialIndex(points[0], points[1], points[2], 2);
+        File file = folder.newFile("index.sdx");
+        index.save(file);
+        SpatialIndex loaded = SpatialIndex.load(file);
+        assertEquals(index.size(), loaded.size());
+        for (int i = 0; i < points[0].length; i++) {
+            assertEquals(index.nearestDistance(i), loaded.nearestDistance(i), 0);
+            assertEquals(index.countWithin(i, 5), loaded.countWithin(i, 5));
+        }
+    }
+}
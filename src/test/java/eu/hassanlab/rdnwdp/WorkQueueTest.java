@@ -0,0 +1,131 @@
+package eu.hassanlab.rdnwdp;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.log.StderrLogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class WorkQueueTest {
+
+    private static final String COMMAND = "Quantification";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File work;
+    private File input;
+    private File sample;
+    private AtomicInteger runs;
+
+    @Before
+    public void setUp() throws IOException {
+        work = folder.newFolder("work");
+        input = folder.newFolder("input");
+        sample = new File(input, "sample.h5");
+        runs = new AtomicInteger();
+    }
+
+    private WorkQueue queue() {
+        return new WorkQueue(work, input, COMMAND, new StderrLogService());
+    }
+
+    private Callable<String> task(WorkQueue queue) {
+        return queue.task(sample, () -> {
+            runs.incrementAndGet();
+            return "result";
+        });
+    }
+
+    private Path marker(String suffix) {
+        return new File(new File(work, COMMAND), sample.getName() + suffix).toPath();
+    }
+
+    private void lease(String worker, long age) throws IOException {
+        Path lease = marker(".lease");
+        Files.write(lease, worker.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - age));
+    }
+
+    @Test
+    public void runsTasksWithoutWorkDirectory() throws Exception {
+        WorkQueue queue = new WorkQueue(null, input, COMMAND, new StderrLogService());
+        assertFalse(queue.isShared());
+        assertEquals("result", task(queue).call());
+        assertEquals("result", task(queue).call());
+        assertEquals(2, runs.get());
+        queue.close();
+    }
+
+    @Test
+    public void doneSamplesAreSkipped() throws Exception {
+        WorkQueue queue = queue();
+        assertEquals("result", task(queue).call());
+        assertTrue(Files.exists(marker(".done")));
+        assertFalse(Files.exists(marker(".lease")));
+        assertNull(task(queue).call());
+        WorkQueue other = queue();
+        assertNull(task(other).call());
+        assertEquals(1, runs.get());
+        other.close();
+        queue.close();
+    }
+
+    @Test
+    public void freshLeasesAreRespected() throws Exception {
+        WorkQueue queue = queue();
+        lease("other", TimeUnit.MINUTES.toMillis(1));
+        assertNull(task(queue).call());
+        assertEquals(0, runs.get());
+        assertFalse(Files.exists(marker(".done")));
+        assertEquals("other", new String(Files.readAllBytes(marker(".lease")), StandardCharsets.UTF_8));
+        queue.close();
+    }
+
+    @Test
+    public void expiredLeasesAreTakenOver() throws Exception {
+        WorkQueue queue = queue();
+        lease("other", TimeUnit.MINUTES.toMillis(11));
+        assertEquals("result", task(queue).call());
+        assertEquals(1, runs.get());
+        assertTrue(Files.exists(marker(".done")));
+        assertFalse(Files.exists(marker(".lease")));
+        queue.close();
+    }
+
+    @Test
+    public void failedSamplesAreRetriedUpToTheLimit() throws Exception {
+        WorkQueue queue = queue();
+        Callable<String> failing = queue.task(sample, () -> {
+            runs.incrementAndGet();
+            throw new IOException("unreadable");
+        });
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                failing.call();
+                fail();
+            } catch (IOException e) {
+                assertEquals("unreadable", e.getMessage());
+            }
+        }
+        assertTrue(Files.exists(marker(".failed")));
+        assertNull(failing.call());
+        assertNull(task(queue).call());
+        assertEquals(3, runs.get());
+        queue.close();
+        assertTrue(Files.exists(new File(new File(work, COMMAND), "completion.csv").toPath()));
+    }
+}